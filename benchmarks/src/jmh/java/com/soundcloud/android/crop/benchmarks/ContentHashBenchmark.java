@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 of the encoded output, computed as it's written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ContentHashBenchmark {
+
+    @Param({"1", "12", "48", "100"})
+    public int megapixels;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        encoded = new SyntheticImage(megapixels).encodedBytes();
+    }
+
+    @Benchmark
+    public byte[] contentHash(MegapixelCounter counter) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        // Same chunk size as the stream copy
+        for (int offset = 0; offset < encoded.length; offset += 8192) {
+            digest.update(encoded, offset, Math.min(8192, encoded.length - offset));
+        }
+        counter.megapixels += megapixels;
+        return digest.digest();
+    }
+
+}
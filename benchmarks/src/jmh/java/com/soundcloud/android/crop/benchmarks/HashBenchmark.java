@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.benchmarks;
+
+import com.soundcloud.android.crop.core.BlurHash;
+import com.soundcloud.android.crop.core.Pixels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes of the pixels computed while saving: dHash and BlurHash, each timed from the
+ * downsample of the full crop it starts with, the same way the library does it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HashBenchmark {
+
+    // Same as ImageHashes and Placeholder in the library
+    private static final int DHASH_SAMPLES = 16;
+    private static final int THUMBNAIL_SIZE = 32;
+    private static final int THUMBNAIL_SAMPLES = 8;
+
+    @Param({"1", "12", "48", "100"})
+    public int megapixels;
+
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    private SyntheticImage image;
+    private boolean rotated;
+    private int dHashWidth;
+    private int dHashHeight;
+    private int thumbnailWidth;
+    private int thumbnailHeight;
+
+    @Setup
+    public void setUp() {
+        image = new SyntheticImage(megapixels);
+        rotated = (rotation / 90) % 2 != 0;
+        dHashWidth = rotated ? 8 : 9;
+        dHashHeight = rotated ? 9 : 8;
+
+        float scale = (float) THUMBNAIL_SIZE / Math.max(image.width, image.height);
+        thumbnailWidth = Math.max(1, Math.round(image.width * scale));
+        thumbnailHeight = Math.max(1, Math.round(image.height * scale));
+    }
+
+    @Benchmark
+    public long perceptualHash(MegapixelCounter counter) {
+        int[] grid = Pixels.boxDownsample(image, image.width, image.height, dHashWidth, dHashHeight, DHASH_SAMPLES);
+        counter.megapixels += megapixels;
+        return Pixels.differenceHash(grid, dHashWidth, dHashHeight, rotation);
+    }
+
+    @Benchmark
+    public String blurHash(MegapixelCounter counter) {
+        int[] pixels = Pixels.boxDownsample(image, image.width, image.height,
+                thumbnailWidth, thumbnailHeight, THUMBNAIL_SAMPLES);
+        int[] upright = Pixels.rotate(pixels, thumbnailWidth, thumbnailHeight, rotation);
+        counter.megapixels += megapixels;
+        return BlurHash.encode(upright, rotated ? thumbnailHeight : thumbnailWidth,
+                rotated ? thumbnailWidth : thumbnailHeight, 4, 3);
+    }
+
+}
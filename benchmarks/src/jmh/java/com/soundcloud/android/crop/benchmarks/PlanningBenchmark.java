@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.benchmarks;
+
+import com.soundcloud.android.crop.core.CropGeometry;
+import com.soundcloud.android.crop.core.CropPlanner;
+import com.soundcloud.android.crop.core.CropRect;
+import com.soundcloud.android.crop.core.Size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planning a crop and dragging the crop area, which run on the UI thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlanningBenchmark {
+
+    // Planning is arithmetic on the dimensions, so the size of the image doesn't matter
+    private static final int MEGAPIXELS = 12;
+
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    private SyntheticImage image;
+    private final CropRect imageRect = new CropRect();
+    private final CropRect crop = new CropRect();
+    private final CropRect source = new CropRect();
+
+    @Setup
+    public void setUp() {
+        image = new SyntheticImage(MEGAPIXELS);
+        boolean rotated = (rotation / 90) % 2 != 0;
+        imageRect.set(0, 0, rotated ? image.height : image.width, rotated ? image.width : image.height);
+    }
+
+    @Benchmark
+    public Size planCrop() {
+        int sampleSize = CropPlanner.sampleSize(image.width, image.height, 2048);
+        CropPlanner.defaultCropRect((int) imageRect.width() / sampleSize, (int) imageRect.height() / sampleSize,
+                16, 9, crop);
+        crop.set(crop.left * sampleSize, crop.top * sampleSize, crop.right * sampleSize, crop.bottom * sampleSize);
+        CropPlanner.sourceRect(crop, image.width, image.height, rotation, source);
+        return CropPlanner.outputSize((int) source.width(), (int) source.height(), 1920, 1080);
+    }
+
+    // One second of drag events at 60Hz: grow an edge out and back, then move the crop around
+    @Benchmark
+    public CropRect dragCropRect() {
+        CropPlanner.defaultCropRect((int) imageRect.width(), (int) imageRect.height(), 0, 0, crop);
+        for (int i = 0; i < 30; i++) {
+            CropGeometry.growBy(crop, imageRect, i < 15 ? 8F : -8F, 0F, 0F);
+        }
+        for (int i = 0; i < 30; i++) {
+            CropGeometry.moveBy(crop, imageRect, i < 15 ? 12F : -12F, i < 15 ? -9F : 9F);
+        }
+        return crop;
+    }
+
+}
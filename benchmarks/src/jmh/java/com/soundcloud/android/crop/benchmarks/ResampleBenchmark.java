@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.benchmarks;
+
+import com.soundcloud.android.crop.core.Pixels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downsampling the crop to the placeholder thumbnail and applying the orientation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResampleBenchmark {
+
+    private static final int THUMBNAIL_SIZE = 32;
+    private static final int SAMPLES = 8;
+
+    @Param({"1", "12", "48", "100"})
+    public int megapixels;
+
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    private SyntheticImage image;
+    private int thumbnailWidth;
+    private int thumbnailHeight;
+
+    @Setup
+    public void setUp() {
+        image = new SyntheticImage(megapixels);
+        float scale = (float) THUMBNAIL_SIZE / Math.max(image.width, image.height);
+        thumbnailWidth = Math.round(image.width * scale);
+        thumbnailHeight = Math.round(image.height * scale);
+    }
+
+    @Benchmark
+    public int[] thumbnail(MegapixelCounter counter) {
+        int[] pixels = Pixels.boxDownsample(image, image.width, image.height,
+                thumbnailWidth, thumbnailHeight, SAMPLES);
+        counter.megapixels += megapixels;
+        return Pixels.rotate(pixels, thumbnailWidth, thumbnailHeight, rotation);
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.benchmarks;
+
+import com.soundcloud.android.crop.core.Pixels;
+
+/**
+ * 4:3 image of a given number of megapixels, generated row by row so even 100MP
+ * sources don't need to be held in memory. Deterministic, so runs are comparable.
+ */
+final class SyntheticImage implements Pixels.RowReader {
+
+    final int width;
+    final int height;
+
+    SyntheticImage(int megapixels) {
+        long pixels = megapixels * 1000000L;
+        width = (int) Math.sqrt(pixels * 4 / 3);
+        height = (int) (pixels / width);
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        // Gradient with a little noise, so averages aren't trivially constant
+        int seed = y * 0x9E3779B9 + 1;
+        for (int x = 0; x < width; x++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            int noise = seed & 0x1F;
+            int r = (x * 255 / width + noise) & 0xFF;
+            int g = (y * 255 / height + noise) & 0xFF;
+            int b = ((x + y) & 0xFF) ^ noise;
+            row[x] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+    }
+
+    // Roughly the size of the image as a quality 90 JPEG
+    byte[] encodedBytes() {
+        byte[] bytes = new byte[width * height / 4];
+        int seed = width * 31 + height;
+        for (int i = 0; i < bytes.length; i++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            bytes[i] = (byte) seed;
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+/**
+ * Encoder for BlurHash (https://blurha.sh), a compact string that decodes to a blurred placeholder.
+ * Meant for small images: the cost is width * height * components.
+ */
+public final class BlurHash {
+
+    private static final String BASE83 =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            float v = i / 255f;
+            SRGB_TO_LINEAR[i] = v <= 0.04045f ? v / 12.92f : (float) Math.pow((v + 0.055f) / 1.055f, 2.4f);
+        }
+    }
+
+    private BlurHash() {
+    }
+
+    /**
+     * @param pixels      ARGB pixels, row by row
+     * @param componentsX Number of horizontal components, between 1 and 9
+     * @param componentsY Number of vertical components, between 1 and 9
+     */
+    public static String encode(int[] pixels, int width, int height, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+            throw new IllegalArgumentException("Components must be between 1 and 9");
+        }
+
+        float[][] cosX = cosines(componentsX, width);
+        float[][] cosY = cosines(componentsY, height);
+        float[] factors = new float[componentsX * componentsY * 3];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                float normalisation = (i == 0 && j == 0) ? 1f : 2f;
+                float r = 0, g = 0, b = 0;
+                for (int y = 0; y < height; y++) {
+                    float basisY = normalisation * cosY[j][y];
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        float basis = basisY * cosX[i][x];
+                        int pixel = pixels[row + x];
+                        r += basis * SRGB_TO_LINEAR[(pixel >> 16) & 0xFF];
+                        g += basis * SRGB_TO_LINEAR[(pixel >> 8) & 0xFF];
+                        b += basis * SRGB_TO_LINEAR[pixel & 0xFF];
+                    }
+                }
+                float scale = 1f / (width * height);
+                int index = (j * componentsX + i) * 3;
+                factors[index] = r * scale;
+                factors[index + 1] = g * scale;
+                factors[index + 2] = b * scale;
+            }
+        }
+
+        StringBuilder hash = new StringBuilder(6 + factors.length / 3 * 2);
+        appendBase83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+
+        float maximumValue = 1f;
+        if (factors.length > 3) {
+            float actualMaximum = 0f;
+            for (int k = 3; k < factors.length; k++) {
+                actualMaximum = Math.max(actualMaximum, Math.abs(factors[k]));
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximumValue = (quantisedMaximum + 1) / 166f;
+            appendBase83(hash, quantisedMaximum, 1);
+        } else {
+            appendBase83(hash, 0, 1);
+        }
+
+        int dc = (linearToSrgb(factors[0]) << 16) + (linearToSrgb(factors[1]) << 8) + linearToSrgb(factors[2]);
+        appendBase83(hash, dc, 4);
+        for (int k = 3; k < factors.length; k += 3) {
+            int ac = quantiseAc(factors[k], maximumValue) * 19 * 19
+                    + quantiseAc(factors[k + 1], maximumValue) * 19
+                    + quantiseAc(factors[k + 2], maximumValue);
+            appendBase83(hash, ac, 2);
+        }
+        return hash.toString();
+    }
+
+    private static float[][] cosines(int components, int size) {
+        float[][] table = new float[components][size];
+        for (int c = 0; c < components; c++) {
+            for (int p = 0; p < size; p++) {
+                table[c][p] = (float) Math.cos(Math.PI * c * p / size);
+            }
+        }
+        return table;
+    }
+
+    private static int quantiseAc(float value, float maximumValue) {
+        float v = value / maximumValue;
+        double signedRoot = Math.copySign(Math.sqrt(Math.abs(v)), v);
+        return (int) Math.max(0, Math.min(18, Math.floor(signedRoot * 9 + 9.5)));
+    }
+
+    private static int linearToSrgb(float value) {
+        float v = Math.max(0f, Math.min(1f, value));
+        if (v <= 0.0031308f) {
+            return (int) (v * 12.92f * 255 + 0.5f);
+        }
+        return (int) ((1.055f * Math.pow(v, 1 / 2.4f) - 0.055f) * 255 + 0.5f);
+    }
+
+    private static void appendBase83(StringBuilder hash, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int divisor = 1;
+            for (int k = 0; k < length - i; k++) {
+                divisor *= 83;
+            }
+            hash.append(BASE83.charAt((value / divisor) % 83));
+        }
+    }
+
+}
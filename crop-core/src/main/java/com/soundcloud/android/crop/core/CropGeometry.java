@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+/**
+ * Moves and resizes a crop area in image space, keeping it inside the image.
+ * Works in place, so dragging doesn't allocate.
+ */
+public final class CropGeometry {
+
+    // Smallest width the crop area can shrink to
+    private static final float MIN_WIDTH = 25F;
+
+    private CropGeometry() {
+    }
+
+    /**
+     * Moves the crop area by (dx, dy), stopping at the image edges.
+     */
+    public static void moveBy(CropRect crop, CropRect image, float dx, float dy) {
+        crop.offset(dx, dy);
+
+        // Put the cropping rectangle inside image rectangle
+        crop.offset(
+                Math.max(0, image.left - crop.left),
+                Math.max(0, image.top - crop.top));
+
+        crop.offset(
+                Math.min(0, image.right - crop.right),
+                Math.min(0, image.bottom - crop.bottom));
+    }
+
+    /**
+     * Grows the crop area by (dx, dy) on each side, or shrinks it for negative values.
+     *
+     * @param aspectRatio Width / height ratio to maintain, or 0 for a free aspect ratio
+     */
+    public static void growBy(CropRect crop, CropRect image, float dx, float dy, float aspectRatio) {
+        boolean maintainAspectRatio = aspectRatio != 0F;
+        if (maintainAspectRatio) {
+            if (dx != 0) {
+                dy = dx / aspectRatio;
+            } else if (dy != 0) {
+                dx = dy * aspectRatio;
+            }
+        }
+
+        // Don't let the cropping rectangle grow too fast.
+        // Grow at most half of the difference between the image rectangle and
+        // the cropping rectangle.
+        if (dx > 0F && crop.width() + 2 * dx > image.width()) {
+            dx = (image.width() - crop.width()) / 2F;
+            if (maintainAspectRatio) {
+                dy = dx / aspectRatio;
+            }
+        }
+        if (dy > 0F && crop.height() + 2 * dy > image.height()) {
+            dy = (image.height() - crop.height()) / 2F;
+            if (maintainAspectRatio) {
+                dx = dy * aspectRatio;
+            }
+        }
+
+        crop.inset(-dx, -dy);
+
+        // Don't let the cropping rectangle shrink too fast
+        if (crop.width() < MIN_WIDTH) {
+            crop.inset(-(MIN_WIDTH - crop.width()) / 2F, 0F);
+        }
+        float minHeight = maintainAspectRatio
+                ? (MIN_WIDTH / aspectRatio)
+                : MIN_WIDTH;
+        if (crop.height() < minHeight) {
+            crop.inset(0F, -(minHeight - crop.height()) / 2F);
+        }
+
+        // Put the cropping rectangle inside the image rectangle
+        if (crop.left < image.left) {
+            crop.offset(image.left - crop.left, 0F);
+        } else if (crop.right > image.right) {
+            crop.offset(-(crop.right - image.right), 0F);
+        }
+        if (crop.top < image.top) {
+            crop.offset(0F, image.top - crop.top);
+        } else if (crop.bottom > image.bottom) {
+            crop.offset(0F, -(crop.bottom - image.bottom));
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+/**
+ * Decides how an image is decoded and cropped: preview sample size, default crop area,
+ * mapping onto the unrotated source and output size.
+ */
+public final class CropPlanner {
+
+    private CropPlanner() {
+    }
+
+    /**
+     * @param width   Source width
+     * @param height  Source height
+     * @param maxSize Maximum width and height of the preview
+     * @return Smallest power of two sample size that fits the preview within maxSize
+     */
+    public static int sampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        while (height / sampleSize > maxSize || width / sampleSize > maxSize) {
+            sampleSize = sampleSize << 1;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Centered crop area of about 4/5 of the shorter side, with the given aspect ratio if set.
+     *
+     * @param aspectX Aspect X, or 0 for a square default with a free aspect ratio
+     * @param aspectY Aspect Y, or 0 for a square default with a free aspect ratio
+     * @param out     Receives the crop area
+     */
+    public static void defaultCropRect(int width, int height, int aspectX, int aspectY, CropRect out) {
+        int cropWidth = Math.min(width, height) * 4 / 5;
+        @SuppressWarnings("SuspiciousNameCombination")
+        int cropHeight = cropWidth;
+
+        if (aspectX != 0 && aspectY != 0) {
+            if (aspectX > aspectY) {
+                cropHeight = cropWidth * aspectY / aspectX;
+            } else {
+                cropWidth = cropHeight * aspectX / aspectY;
+            }
+        }
+
+        int x = (width - cropWidth) / 2;
+        int y = (height - cropHeight) / 2;
+        out.set(x, y, x + cropWidth, y + cropHeight);
+    }
+
+    /**
+     * Maps a crop area on the displayed (rotated) image onto the unrotated source.
+     *
+     * @param rect     Crop area on the displayed image
+     * @param width    Width of the unrotated source
+     * @param height   Height of the unrotated source
+     * @param rotation Clockwise rotation of the displayed image: 0, 90, 180 or 270
+     * @param out      Receives the crop area on the source, may be the same as rect
+     */
+    public static void sourceRect(CropRect rect, int width, int height, int rotation, CropRect out) {
+        float left = rect.left;
+        float top = rect.top;
+        float right = rect.right;
+        float bottom = rect.bottom;
+        switch (rotation) {
+            case 90:
+                out.set(top, height - right, bottom, height - left);
+                break;
+            case 180:
+                out.set(width - right, height - bottom, width - left, height - top);
+                break;
+            case 270:
+                out.set(width - bottom, left, width - top, right);
+                break;
+            default:
+                out.set(left, top, right, bottom);
+                break;
+        }
+    }
+
+    /**
+     * @param width  Crop width
+     * @param height Crop height
+     * @param maxX   Maximum output width, or 0 for no limit
+     * @param maxY   Maximum output height, or 0 for no limit
+     * @return Output size, scaled down to fit within the maximum and keeping the aspect ratio
+     */
+    public static Size outputSize(int width, int height, int maxX, int maxY) {
+        int outWidth = width;
+        int outHeight = height;
+        if (maxX > 0 && maxY > 0 && (width > maxX || height > maxY)) {
+            float ratio = (float) width / (float) height;
+            if ((float) maxX / (float) maxY > ratio) {
+                outHeight = maxY;
+                outWidth = (int) ((float) maxY * ratio + .5f);
+            } else {
+                outWidth = maxX;
+                outHeight = (int) ((float) maxX / ratio + .5f);
+            }
+        }
+        return new Size(outWidth, outHeight);
+    }
+
+}
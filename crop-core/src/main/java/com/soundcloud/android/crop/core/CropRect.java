@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+/**
+ * Mutable rectangle with float coordinates, like android.graphics.RectF,
+ * so crop geometry can run and be tested without Android.
+ */
+public final class CropRect {
+
+    public float left;
+    public float top;
+    public float right;
+    public float bottom;
+
+    public CropRect() {
+    }
+
+    public CropRect(float left, float top, float right, float bottom) {
+        set(left, top, right, bottom);
+    }
+
+    public void set(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void set(CropRect src) {
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    public float width() {
+        return right - left;
+    }
+
+    public float height() {
+        return bottom - top;
+    }
+
+    public float centerX() {
+        return (left + right) * 0.5f;
+    }
+
+    public float centerY() {
+        return (top + bottom) * 0.5f;
+    }
+
+    public void offset(float dx, float dy) {
+        left += dx;
+        top += dy;
+        right += dx;
+        bottom += dy;
+    }
+
+    // Positive values shrink the rectangle, negative values grow it
+    public void inset(float dx, float dy) {
+        left += dx;
+        top += dy;
+        right -= dx;
+        bottom -= dy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CropRect)) {
+            return false;
+        }
+        CropRect r = (CropRect) o;
+        return left == r.left && top == r.top && right == r.right && bottom == r.bottom;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(left);
+        result = 31 * result + Float.floatToIntBits(top);
+        result = 31 * result + Float.floatToIntBits(right);
+        result = 31 * result + Float.floatToIntBits(bottom);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "CropRect(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+    }
+
+}
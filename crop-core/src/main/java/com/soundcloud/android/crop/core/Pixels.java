@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+/**
+ * Kernels over ARGB pixels for thumbnails and hashes.
+ */
+public final class Pixels {
+
+    /**
+     * Source of pixel rows, so large images don't have to be copied out in full.
+     */
+    public interface RowReader {
+        /**
+         * @param y   Row to read
+         * @param row Receives the ARGB pixels of the row
+         */
+        void readRow(int y, int[] row);
+    }
+
+    private Pixels() {
+    }
+
+    /**
+     * Integer box filter over an evenly spaced grid of samples in each destination pixel.
+     * Only the sampled source rows are read, so the cost doesn't grow with the source height.
+     *
+     * @param samples Number of samples per destination pixel in each direction
+     * @return ARGB pixels of the downsampled image, row by row
+     */
+    public static int[] boxDownsample(RowReader source, int sourceWidth, int sourceHeight,
+                                      int width, int height, int samples) {
+        int samplesX = width * samples;
+        int samplesY = height * samples;
+
+        int[] sampleColumns = new int[samplesX];
+        for (int sx = 0; sx < samplesX; sx++) {
+            sampleColumns[sx] = (int) ((sx + 0.5f) * sourceWidth / samplesX);
+        }
+
+        int[] row = new int[sourceWidth];
+        int[] sumA = new int[width];
+        int[] sumR = new int[width];
+        int[] sumG = new int[width];
+        int[] sumB = new int[width];
+        int[] pixels = new int[width * height];
+        int count = samples * samples;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sumA[x] = sumR[x] = sumG[x] = sumB[x] = 0;
+            }
+            for (int k = 0; k < samples; k++) {
+                int sourceY = (int) ((y * samples + k + 0.5f) * sourceHeight / samplesY);
+                source.readRow(sourceY, row);
+                for (int sx = 0; sx < samplesX; sx++) {
+                    int pixel = row[sampleColumns[sx]];
+                    int x = sx / samples;
+                    sumA[x] += pixel >>> 24;
+                    sumR[x] += (pixel >> 16) & 0xFF;
+                    sumG[x] += (pixel >> 8) & 0xFF;
+                    sumB[x] += pixel & 0xFF;
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = (sumA[x] / count) << 24 | (sumR[x] / count) << 16
+                        | (sumG[x] / count) << 8 | (sumB[x] / count);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Applies a clockwise rotation of 0, 90, 180 or 270 degrees.
+     *
+     * @return Rotated pixels, with width and height swapped for 90 and 270
+     */
+    public static int[] rotate(int[] pixels, int width, int height, int rotation) {
+        boolean rotated = (rotation / 90) % 2 != 0;
+        int uprightWidth = rotated ? height : width;
+        int uprightHeight = rotated ? width : height;
+        int[] upright = new int[pixels.length];
+        for (int y = 0; y < uprightHeight; y++) {
+            for (int x = 0; x < uprightWidth; x++) {
+                upright[y * uprightWidth + x] = pixels[unrotatedIndex(x, y, width, height, rotation)];
+            }
+        }
+        return upright;
+    }
+
+    /**
+     * 64-bit difference hash of a 9x8 grid as displayed, i.e. after applying the rotation.
+     * Each bit is set when a pixel is brighter than its right neighbour, row by row
+     * starting with the most significant bit.
+     *
+     * @param pixels Unrotated grid: 9x8, or 8x9 when the rotation is 90 or 270
+     */
+    public static long differenceHash(int[] pixels, int width, int height, int rotation) {
+        boolean rotated = (rotation / 90) % 2 != 0;
+        int hashWidth = rotated ? height : width;
+        int hashHeight = rotated ? width : height;
+        long hash = 0;
+        for (int y = 0; y < hashHeight; y++) {
+            int left = luminance(pixels[unrotatedIndex(0, y, width, height, rotation)]);
+            for (int x = 1; x < hashWidth; x++) {
+                int right = luminance(pixels[unrotatedIndex(x, y, width, height, rotation)]);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+                left = right;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Index into the unrotated pixels for a point on the rotated image.
+     *
+     * @param width  Width of the unrotated pixels
+     * @param height Height of the unrotated pixels
+     */
+    public static int unrotatedIndex(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                return (height - 1 - x) * width + y;
+            case 180:
+                return (height - 1 - y) * width + (width - 1 - x);
+            case 270:
+                return x * width + (width - 1 - y);
+            default:
+                return y * width + x;
+        }
+    }
+
+    private static int luminance(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class CropGeometryTest {
+
+    private final CropRect image = new CropRect(0, 0, 1000, 1000);
+
+    @Test
+    public void moveStopsAtImageEdges() {
+        CropRect crop = new CropRect(200, 200, 800, 800);
+
+        CropGeometry.moveBy(crop, image, -500, 300);
+
+        assertThat(crop).isEqualTo(new CropRect(0, 400, 600, 1000));
+    }
+
+    @Test
+    public void growIsLimitedToHalfTheRemainingSpace() {
+        CropRect crop = new CropRect(200, 200, 800, 800);
+
+        CropGeometry.growBy(crop, image, 500, 0, 0F);
+
+        assertThat(crop).isEqualTo(new CropRect(0, 200, 1000, 800));
+    }
+
+    @Test
+    public void growKeepsAspectRatio() {
+        CropRect crop = new CropRect(400, 450, 600, 550);
+
+        CropGeometry.growBy(crop, image, 100, 0, 2F);
+
+        assertThat(crop).isEqualTo(new CropRect(300, 400, 700, 600));
+    }
+
+    @Test
+    public void shrinkStopsAtMinimumSize() {
+        CropRect crop = new CropRect(400, 400, 600, 600);
+
+        CropGeometry.growBy(crop, image, -200, -200, 0F);
+
+        assertThat(crop.width()).isEqualTo(25F);
+        assertThat(crop.height()).isEqualTo(25F);
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class CropPlannerTest {
+
+    @Test
+    public void sampleSizeIsSmallestPowerOfTwoThatFits() {
+        assertThat(CropPlanner.sampleSize(2048, 1536, 2048)).isEqualTo(1);
+        assertThat(CropPlanner.sampleSize(4000, 3000, 2048)).isEqualTo(2);
+        assertThat(CropPlanner.sampleSize(3000, 9000, 2048)).isEqualTo(8);
+    }
+
+    @Test
+    public void defaultCropRectIsCenteredSquare() {
+        CropRect rect = new CropRect();
+
+        CropPlanner.defaultCropRect(1000, 500, 0, 0, rect);
+
+        assertThat(rect).isEqualTo(new CropRect(300, 50, 700, 450));
+    }
+
+    @Test
+    public void defaultCropRectKeepsAspectRatio() {
+        CropRect rect = new CropRect();
+
+        CropPlanner.defaultCropRect(1000, 500, 16, 9, rect);
+
+        assertThat(rect).isEqualTo(new CropRect(300, 137, 700, 362));
+    }
+
+    @Test
+    public void sourceRectUndoesRotation() {
+        // 100x50 source, displayed rotated as 50x100
+        CropRect displayed = new CropRect(10, 20, 30, 60);
+        CropRect rect = new CropRect();
+
+        CropPlanner.sourceRect(displayed, 100, 50, 90, rect);
+        assertThat(rect).isEqualTo(new CropRect(20, 20, 60, 40));
+
+        CropPlanner.sourceRect(displayed, 100, 50, 270, rect);
+        assertThat(rect).isEqualTo(new CropRect(40, 10, 80, 30));
+    }
+
+    @Test
+    public void sourceRectUndoesUpsideDown() {
+        CropRect rect = new CropRect(10, 20, 30, 60);
+
+        CropPlanner.sourceRect(rect, 100, 80, 180, rect);
+
+        assertThat(rect).isEqualTo(new CropRect(70, 20, 90, 60));
+    }
+
+    @Test
+    public void outputSizeFitsWithinMaxSize() {
+        assertThat(CropPlanner.outputSize(4000, 3000, 1000, 1000)).isEqualTo(new Size(1000, 750));
+        assertThat(CropPlanner.outputSize(3000, 4000, 1000, 1000)).isEqualTo(new Size(750, 1000));
+    }
+
+    @Test
+    public void outputSizeIsUnchangedWithoutMaxSize() {
+        assertThat(CropPlanner.outputSize(4000, 3000, 0, 0)).isEqualTo(new Size(4000, 3000));
+        assertThat(CropPlanner.outputSize(400, 300, 1000, 1000)).isEqualTo(new Size(400, 300));
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop.core;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class PixelsTest {
+
+    // 3x2 image: 1 2 3 / 4 5 6
+    private final int[] pixels = { 1, 2, 3, 4, 5, 6 };
+
+    @Test
+    public void rotateClockwise() {
+        assertThat(Pixels.rotate(pixels, 3, 2, 90)).isEqualTo(new int[] { 4, 1, 5, 2, 6, 3 });
+        assertThat(Pixels.rotate(pixels, 3, 2, 180)).isEqualTo(new int[] { 6, 5, 4, 3, 2, 1 });
+        assertThat(Pixels.rotate(pixels, 3, 2, 270)).isEqualTo(new int[] { 3, 6, 2, 5, 1, 4 });
+    }
+
+    @Test
+    public void boxDownsampleAveragesSamples() {
+        Pixels.RowReader halfWhite = new Pixels.RowReader() {
+            @Override
+            public void readRow(int y, int[] row) {
+                for (int x = 0; x < row.length; x++) {
+                    row[x] = y < 32 ? 0xFFFFFFFF : 0xFF000000;
+                }
+            }
+        };
+
+        int[] result = Pixels.boxDownsample(halfWhite, 64, 64, 1, 1, 8);
+
+        assertThat(result).isEqualTo(new int[] { 0xFF7F7F7F });
+    }
+
+    @Test
+    public void differenceHashOfFallingGradientHasAllBitsSet() {
+        int[] grid = new int[9 * 8];
+        for (int i = 0; i < grid.length; i++) {
+            int v = 255 - (i % 9) * 20;
+            grid[i] = 0xFF000000 | v << 16 | v << 8 | v;
+        }
+
+        assertThat(Pixels.differenceHash(grid, 9, 8, 0)).isEqualTo(-1L);
+    }
+
+}
@@ -36,6 +36,14 @@ public class CropBuilderTest extends BaseTestCase {
         assertThat(output.toString()).isEqualTo("image:output");
     }
 
+    public void testOutputSinkSetAsExtraInsteadOfUri() {
+        OutputSink sink = OutputSink.toBuffer(1024);
+        Intent intent = Crop.of(Uri.parse("image:input"), sink).getIntent(activity);
+
+        assertThat(intent.hasExtra(MediaStore.EXTRA_OUTPUT)).isFalse();
+        assertThat(CallbackRegistry.<OutputSink>get(intent.getLongExtra("output_sink", 0))).isSameAs(sink);
+    }
+
     public void testAspectRatioSetAsExtras() {
         builder.withAspect(16, 10);
 
@@ -63,6 +71,24 @@ public class CropBuilderTest extends BaseTestCase {
         assertThat(intent.getIntExtra("max_y", 0)).isEqualTo(300);
     }
 
+    public void testHashesSetAsExtras() {
+        builder.withContentHash().withPerceptualHash();
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getBooleanExtra("content_hash", false)).isEqualTo(true);
+        assertThat(intent.getBooleanExtra("perceptual_hash", false)).isEqualTo(true);
+    }
+
+    public void testMetricsListenerRegistered() {
+        CropMetrics.Listener listener = mock(CropMetrics.Listener.class);
+        builder.withMetrics(listener);
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(CallbackRegistry.<CropMetrics.Listener>get(intent.getLongExtra("metrics_listener", 0))).isSameAs(listener);
+    }
+
     public void testBuildsIntentWithMultipleOptions() {
         builder.asSquare().withMaxSize(200, 200);
 
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+
+public class CropMetricsTest extends BaseTestCase {
+
+    public void testMetricsSurviveResultIntent() {
+        CropMetrics metrics = new CropMetrics();
+        metrics.setSampleSize(4);
+        metrics.setSourceBytes(1000);
+        metrics.endStage(CropMetrics.Stage.COMPRESS, System.nanoTime(), 500);
+        Intent result = new Intent().putExtra(Crop.Extra.METRICS, metrics.toBundle());
+
+        CropMetrics restored = Crop.getMetrics(result);
+
+        assertThat(restored.getSampleSize()).isEqualTo(4);
+        assertThat(restored.getSourceFileBytes()).isEqualTo(1000);
+        assertThat(restored.getOutputFileBytes()).isEqualTo(-1);
+        assertThat(restored.getStageBytes(CropMetrics.Stage.COMPRESS)).isEqualTo(500);
+    }
+
+    public void testPeakCountsBitmapsHeldAtTheSameTime() {
+        Bitmap preview = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap crop = Bitmap.createBitmap(50, 50, Bitmap.Config.ARGB_8888);
+        CropMetrics metrics = new CropMetrics();
+
+        metrics.allocated(preview);
+        metrics.allocated(crop);
+        metrics.released(preview);
+        metrics.released(crop);
+
+        assertThat(metrics.getPeakBitmapBytes()).isEqualTo(100 * 100 * 4 + 50 * 50 * 4);
+    }
+
+}
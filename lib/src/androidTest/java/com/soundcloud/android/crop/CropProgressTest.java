@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+public class CropProgressTest extends BaseTestCase {
+
+    private final List<Float> reported = new ArrayList<Float>();
+    private CropProgress progress;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        progress = new CropProgress(new CropProgress.Listener() {
+            public void onProgress(float fraction) {
+                reported.add(fraction);
+            }
+        });
+    }
+
+    public void testUpdatesAreMappedIntoThePhase() {
+        progress.phase(0.5F, 1F);
+        progress.update(0.5F);
+        progress.update(1F);
+
+        assertThat(reported).containsExactly(0.5F, 0.75F, 1F);
+    }
+
+    public void testProgressNeverGoesBack() {
+        progress.update(0.8F);
+        progress.update(0.2F);
+        progress.update(0.805F);
+
+        assertThat(reported).containsExactly(0.8F);
+    }
+
+    public void testCheckpointThrowsOnceCancelled() {
+        progress.checkpoint();
+        progress.cancel();
+
+        try {
+            progress.update(0.5F);
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+            assertThat(reported).isEmpty();
+        }
+    }
+
+}
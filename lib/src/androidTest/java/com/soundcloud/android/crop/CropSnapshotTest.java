@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.io.File;
+
+public class CropSnapshotTest extends BaseTestCase {
+
+    private static final Uri SOURCE = Uri.parse("content://media/external/images/media/1");
+
+    private Context context;
+    private CropSnapshot snapshot;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (snapshot != null) {
+            snapshot.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testPreviewIsHalvedUntilItFits() throws Exception {
+        RotateBitmap preview = new RotateBitmap(Bitmap.createBitmap(3000, 1500, Bitmap.Config.ARGB_8888), 90);
+
+        snapshot = CropSnapshot.create(context, SOURCE, preview, 2, 1000, 6000, 3000, "image/jpeg");
+        Bitmap cached = snapshot.readPreview();
+
+        assertThat(snapshot.sampleSize).isEqualTo(8);
+        assertThat(snapshot.exifRotation).isEqualTo(90);
+        assertThat(cached.getWidth()).isEqualTo(750);
+        assertThat(cached.getHeight()).isEqualTo(375);
+    }
+
+    public void testSnapshotSurvivesBundle() throws Exception {
+        RotateBitmap preview = new RotateBitmap(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 0);
+        snapshot = CropSnapshot.create(context, SOURCE, preview, 1, -1, 100, 100, "image/png");
+        snapshot.cropRect = new float[] {0.1f, 0.2f, 0.9f, 0.8f};
+        snapshot.suppMatrix = new float[] {2, 0, -50, 0, 2, -50, 0, 0, 1};
+
+        CropSnapshot restored = CropSnapshot.fromBundle(snapshot.toBundle());
+
+        assertThat(restored.sourceUri).isEqualTo(SOURCE);
+        assertThat(restored.preview).isEqualTo(snapshot.preview);
+        assertThat(restored.sourceBytes).isEqualTo(-1);
+        assertThat(restored.sourceMimeType).isEqualTo("image/png");
+        assertThat(restored.cropRect).isEqualTo(snapshot.cropRect);
+        assertThat(restored.suppMatrix).isEqualTo(snapshot.suppMatrix);
+        assertThat(restored.validated).isFalse();
+    }
+
+    public void testMissingPreviewReadsAsNull() throws Exception {
+        RotateBitmap preview = new RotateBitmap(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 0);
+        snapshot = CropSnapshot.create(context, SOURCE, preview, 1, -1, 100, 100, "image/jpeg");
+
+        snapshot.delete();
+
+        assertThat(snapshot.readPreview()).isNull();
+    }
+
+    public void testStalePreviewsAreDeleted() throws Exception {
+        RotateBitmap preview = new RotateBitmap(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 0);
+        CropSnapshot stale = CropSnapshot.create(context, SOURCE, preview, 1, -1, 100, 100, "image/jpeg");
+        File other = new File(context.getCacheDir(), "not-a-snapshot");
+        other.createNewFile();
+
+        CropSnapshot.deleteStale(context);
+
+        assertThat(stale.preview.exists()).isFalse();
+        assertThat(other.exists()).isTrue();
+        other.delete();
+    }
+
+}
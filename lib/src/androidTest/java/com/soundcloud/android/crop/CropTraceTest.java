@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CropTraceTest extends BaseTestCase {
+
+    public void testSpansAreExportedAsCompleteEvents() {
+        long start = CropTrace.begin("test.span");
+        CropTrace.end("test.span", start);
+
+        String json = CropTrace.toChromeTrace();
+
+        assertThat(json).startsWith("{\"traceEvents\":[");
+        assertThat(json).contains("{\"name\":\"test.span\",\"cat\":\"crop\",\"ph\":\"X\"");
+    }
+
+    public void testOnlyMostRecentSpansAreKept() {
+        for (int i = 0; i < 3000; i++) {
+            CropTrace.record(i < 2000 ? "test.old" : "test.new", i * 1000L, 1000L, 1);
+        }
+
+        String json = CropTrace.toChromeTrace();
+
+        assertThat(json).doesNotContain("test.old");
+        assertThat(json.split("\"ph\":\"X\"")).hasSize(1024 + 1);
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+public class CropUtilTest extends BaseTestCase {
+
+    private static final byte[] IMAGE = new byte[] {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, (byte) 0xFF, (byte) 0xD9};
+
+    private ContentResolver resolver;
+    private File dir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getTargetContext();
+        resolver = context.getContentResolver();
+        dir = new File(context.getCacheDir(), "crop-util-test");
+        dir.mkdirs();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    public void testCopyInPlaceKeepsTheImage() throws Exception {
+        File image = write("image.jpg");
+        Uri uri = Uri.fromFile(image);
+
+        CropUtil.copy(resolver, uri, uri, null, new CropProgress(null), IMAGE.length);
+
+        assertThat(read(image)).isEqualTo(IMAGE);
+    }
+
+    public void testCopyInPlaceThroughAnotherPathKeepsTheImage() throws Exception {
+        File image = write("image.jpg");
+        Uri alias = Uri.fromFile(new File(dir, "../crop-util-test/image.jpg"));
+
+        CropUtil.copy(resolver, Uri.fromFile(image), alias, null, new CropProgress(null), IMAGE.length);
+
+        assertThat(read(image)).isEqualTo(IMAGE);
+    }
+
+    public void testCopyInPlaceStillHashes() throws Exception {
+        File image = write("image.jpg");
+        Uri uri = Uri.fromFile(image);
+        MessageDigest digest = ImageHashes.newSha256();
+
+        CropUtil.copy(resolver, uri, uri, digest, new CropProgress(null), IMAGE.length);
+
+        assertThat(digest.digest()).isEqualTo(ImageHashes.newSha256().digest(IMAGE));
+        assertThat(read(image)).isEqualTo(IMAGE);
+    }
+
+    public void testCopyReplacesDestinationWithoutLeavingTempFiles() throws Exception {
+        File source = write("source.jpg");
+        File destination = new File(dir, "destination.jpg");
+
+        CropUtil.copy(resolver, Uri.fromFile(source), Uri.fromFile(destination), null, new CropProgress(null), -1);
+
+        assertThat(read(destination)).isEqualTo(IMAGE);
+        assertThat(dir.list()).containsOnly("source.jpg", "destination.jpg");
+    }
+
+    public void testFailedWriteKeepsDestinationAndReportsTheError() throws Exception {
+        File destination = write("destination.jpg");
+        IOException failure = new IOException("Disk full");
+
+        try {
+            CropUtil.write(resolver, Uri.fromFile(destination), failingWriter(failure));
+            fail("Expected the write to fail");
+        } catch (IOException e) {
+            assertThat(e).isSameAs(failure);
+        }
+
+        assertThat(read(destination)).isEqualTo(IMAGE);
+        assertThat(dir.list()).containsOnly("destination.jpg");
+    }
+
+    public void testFailedWriteToNewFileLeavesNothingBehind() throws Exception {
+        File destination = new File(dir, "destination.jpg");
+
+        try {
+            CropUtil.write(resolver, Uri.fromFile(destination), failingWriter(new IOException("Disk full")));
+            fail("Expected the write to fail");
+        } catch (IOException expected) {
+            // The crop screen reports it as the result
+        }
+
+        assertThat(destination.exists()).isFalse();
+        assertThat(dir.list()).isEmpty();
+    }
+
+    public void testWriteReplacesDestination() throws Exception {
+        File destination = new File(dir, "destination.jpg");
+
+        CropUtil.write(resolver, Uri.fromFile(destination), new CropUtil.OutputWriter() {
+            public void writeTo(OutputStream output) throws IOException {
+                output.write(IMAGE);
+            }
+        });
+
+        assertThat(read(destination)).isEqualTo(IMAGE);
+        assertThat(dir.list()).containsOnly("destination.jpg");
+    }
+
+    // Writes part of an image before the stream fails
+    private static CropUtil.OutputWriter failingWriter(final IOException failure) {
+        return new CropUtil.OutputWriter() {
+            public void writeTo(OutputStream output) throws IOException {
+                output.write(IMAGE, 0, 3);
+                throw failure;
+            }
+        };
+    }
+
+    private File write(String name) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(IMAGE);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CropUtil.copy(input, bytes, new CropProgress(null), file.length());
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+}
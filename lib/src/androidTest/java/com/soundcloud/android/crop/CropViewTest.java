@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CropViewTest extends BaseTestCase {
+
+    private CropView cropView;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        cropView = new CropView(getInstrumentation().getTargetContext());
+    }
+
+    public void testCropWithoutImageThrows() {
+        try {
+            cropView.crop(new CropView.Callback() {
+                @Override
+                public void onCropped(CropView.Result result) {
+                    fail("Should not deliver a result");
+                }
+            });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertThat(cropView.isCropping()).isFalse();
+        }
+    }
+
+    public void testReleaseWithoutImage() {
+        cropView.release();
+
+        assertThat(cropView.isLoaded()).isFalse();
+        assertThat(cropView.getSession()).isNull();
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.view.View;
+
+import com.soundcloud.android.crop.core.CropRect;
+
+public class HighlightViewTest extends BaseTestCase {
+
+    private HighlightView highlightView;
+    private Canvas canvas;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        View view = new View(getInstrumentation().getTargetContext());
+        view.layout(0, 0, 500, 500);
+        highlightView = new HighlightView(view);
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(0.5f, 0.5f);
+        highlightView.setup(matrix, new Rect(0, 0, 1000, 1000), new CropRect(200, 200, 800, 800), false);
+        highlightView.setFocus(true);
+
+        canvas = new Canvas(Bitmap.createBitmap(500, 500, Bitmap.Config.ARGB_8888));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDragSequenceDoesNotAllocate() {
+        recordDragSequence(); // Warm up
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            recordDragSequence();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        assertThat(Debug.getThreadAllocCount()).isEqualTo(0);
+    }
+
+    public void testMoveKeepsCropInsideImage() {
+        highlightView.moveBy(-500, 0);
+
+        assertThat(highlightView.cropRect.left).isEqualTo(0f);
+        assertThat(highlightView.drawRect).isEqualTo(new Rect(0, 100, 300, 400));
+    }
+
+    // Touch down on an edge, drag it around, then move the whole rect, drawing every step
+    private void recordDragSequence() {
+        highlightView.getHit(100, 250);
+        highlightView.setMode(HighlightView.ModifyMode.Grow);
+        for (int i = 0; i < 60; i++) {
+            float d = i < 30 ? -2f : 2f;
+            highlightView.handleMotion(HighlightView.GROW_LEFT_EDGE, d, 0);
+            highlightView.draw(canvas);
+        }
+
+        highlightView.getHit(250, 250);
+        highlightView.setMode(HighlightView.ModifyMode.Move);
+        for (int i = 0; i < 60; i++) {
+            float d = i < 30 ? 3f : -3f;
+            highlightView.handleMotion(HighlightView.MOVE, d, d);
+            highlightView.draw(canvas);
+        }
+        highlightView.setMode(HighlightView.ModifyMode.None);
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+public class ImageHashesTest extends BaseTestCase {
+
+    private static final int WIDTH = 900;
+    private static final int HEIGHT = 800;
+
+    public void testDHashOfGradientIgnoresSpeckles() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                // Darker to the right, so every pixel of the grid is brighter than its neighbour
+                int grey = 255 - x * 255 / WIDTH;
+                boolean speckle = (x * 7 + y * 13) % 23 == 0;
+                pixels[y * WIDTH + x] = speckle ? Color.WHITE : Color.rgb(grey, grey, grey);
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+
+        assertThat(ImageHashes.dHash(bitmap, 0)).isEqualTo(-1L);
+    }
+
+}
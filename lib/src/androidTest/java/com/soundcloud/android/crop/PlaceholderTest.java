@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.soundcloud.android.crop.core.BlurHash;
+
+import java.util.Arrays;
+
+public class PlaceholderTest extends BaseTestCase {
+
+    public void testThumbnailFitsWithinMaxSize() {
+        Bitmap bitmap = Bitmap.createBitmap(400, 100, Bitmap.Config.ARGB_8888);
+
+        Placeholder placeholder = Placeholder.create(bitmap, 0);
+
+        assertThat(placeholder.thumbnail.getWidth()).isEqualTo(32);
+        assertThat(placeholder.thumbnail.getHeight()).isEqualTo(8);
+    }
+
+    public void testThumbnailIsUpright() {
+        Bitmap bitmap = Bitmap.createBitmap(400, 100, Bitmap.Config.ARGB_8888);
+
+        Placeholder placeholder = Placeholder.create(bitmap, 90);
+
+        assertThat(placeholder.thumbnail.getWidth()).isEqualTo(8);
+        assertThat(placeholder.thumbnail.getHeight()).isEqualTo(32);
+    }
+
+    public void testBoxDownsampleAveragesColours() {
+        Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLACK);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                bitmap.setPixel(x, y, Color.WHITE);
+            }
+        }
+
+        int[] pixels = Placeholder.boxDownsample(bitmap, 1, 1);
+
+        assertThat(Color.red(pixels[0])).isEqualTo(127);
+        assertThat(Color.alpha(pixels[0])).isEqualTo(255);
+    }
+
+    public void testBlurHashHasSizeFlagAndAllComponents() {
+        int[] pixels = new int[32 * 32];
+        Arrays.fill(pixels, Color.RED);
+
+        String hash = BlurHash.encode(pixels, 32, 32, 4, 3);
+
+        assertThat(hash).startsWith("L");
+        assertThat(hash).hasSize(1 + 1 + 4 + 11 * 2);
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+public class PreviewCacheTest extends BaseTestCase {
+
+    private static final Uri SOURCE = Uri.parse("content://media/external/images/media/1");
+
+    private Context context;
+    private int maxBytes;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+        maxBytes = PreviewCache.getMaxSizeBytes();
+        PreviewCache.clear();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        PreviewCache.clear();
+        PreviewCache.setMaxSizeBytes(maxBytes);
+        super.tearDown();
+    }
+
+    public void testFingerprintAndSampleSizeMustMatch() {
+        Bitmap preview = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        PreviewCache.put(context, key(1000, 2), preview, 4);
+        int hits = PreviewCache.getHitCount();
+        int misses = PreviewCache.getMissCount();
+
+        PreviewCache.Entry hit = PreviewCache.get(key(1000, 2));
+        PreviewCache.Entry changedSource = PreviewCache.get(key(1001, 2));
+        PreviewCache.Entry otherSize = PreviewCache.get(key(1000, 1));
+
+        assertThat(hit.bitmap).isSameAs(preview);
+        assertThat(hit.sampleSize).isEqualTo(4);
+        assertThat(changedSource).isNull();
+        assertThat(otherSize).isNull();
+        assertThat(PreviewCache.getHitCount() - hits).isEqualTo(1);
+        assertThat(PreviewCache.getMissCount() - misses).isEqualTo(2);
+    }
+
+    public void testLeastRecentlyUsedIsEvictedFirst() {
+        PreviewCache.setMaxSizeBytes(2 * 100 * 100 * 4);
+        PreviewCache.put(context, key(1, 1), Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 1);
+        PreviewCache.put(context, key(2, 1), Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 1);
+        PreviewCache.get(key(1, 1));
+
+        PreviewCache.put(context, key(3, 1), Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 1);
+
+        assertThat(PreviewCache.get(key(1, 1))).isNotNull();
+        assertThat(PreviewCache.get(key(2, 1))).isNull();
+        assertThat(PreviewCache.getSizeBytes()).isEqualTo(2 * 100 * 100 * 4);
+    }
+
+    public void testBitmapIsRecycledWhenNeitherCachedNorInUse() {
+        Bitmap cached = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        PreviewCache.put(context, key(1, 1), cached, 1);
+        PreviewCache.get(key(1, 1));
+
+        PreviewCache.recycle(cached);
+        assertThat(cached.isRecycled()).isFalse();
+        PreviewCache.clear();
+        assertThat(cached.isRecycled()).isFalse();
+        PreviewCache.recycle(cached);
+        assertThat(cached.isRecycled()).isTrue();
+    }
+
+    public void testEvictedBitmapIsRecycledIfNotInUse() {
+        Bitmap cached = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        PreviewCache.put(context, key(1, 1), cached, 1);
+
+        PreviewCache.recycle(cached);
+        assertThat(cached.isRecycled()).isFalse();
+        PreviewCache.clear();
+        assertThat(cached.isRecycled()).isTrue();
+    }
+
+    public void testUncachedBitmapIsRecycled() {
+        Bitmap other = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        PreviewCache.recycle(other);
+
+        assertThat(other.isRecycled()).isTrue();
+    }
+
+    private static PreviewCache.Key key(long sourceBytes, int sampleSize) {
+        return PreviewCache.key(SOURCE, sourceBytes, 4000, 3000, "image/jpeg", sampleSize);
+    }
+
+}
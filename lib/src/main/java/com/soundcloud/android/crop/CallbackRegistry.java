@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Objects can't be parceled into the crop Intent, so we keep them here
+ * and pass their id as an extra instead. Entries only live as long as the process.
+ */
+class CallbackRegistry {
+
+    private static final Map<Long, Object> entries = new HashMap<Long, Object>();
+    private static long nextId = 1;
+
+    public static synchronized long register(Object callback) {
+        long id = nextId++;
+        entries.put(id, callback);
+        return id;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static synchronized <T> T get(long id) {
+        return (T) entries.get(id);
+    }
+
+    public static synchronized void remove(long id) {
+        entries.remove(id);
+    }
+
+}
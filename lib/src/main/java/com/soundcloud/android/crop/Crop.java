@@ -6,8 +6,10 @@ import android.app.Fragment;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.provider.MediaStore;
 import android.widget.Toast;
 
@@ -27,6 +29,15 @@ public class Crop {
         String MAX_Y = "max_y";
         String AS_PNG = "as_png";
         String ERROR = "error";
+        String DEGRADATION = "degradation";
+        String OUTPUT_SINK = "output_sink";
+        String CONTENT_HASH = "content_hash";
+        String PERCEPTUAL_HASH = "perceptual_hash";
+        String PLACEHOLDER = "placeholder";
+        String BLURHASH = "blurhash";
+        String THUMBNAIL = "thumbnail";
+        String METRICS = "metrics";
+        String METRICS_LISTENER = "metrics_listener";
     }
 
     private Intent cropIntent;
@@ -41,10 +52,26 @@ public class Crop {
         return new Crop(source, destination);
     }
 
+    /**
+     * Create a crop Intent builder that writes the cropped image to a sink instead of a Uri.
+     * The Exif orientation of the source is applied to the pixels, and {@link #getOutput(Intent)}
+     * returns null for the result.
+     *
+     * @param source Uri for image to crop
+     * @param sink   Sink to receive the encoded image
+     */
+    public static Crop of(Uri source, OutputSink sink) {
+        Crop crop = new Crop(source, null);
+        crop.cropIntent.putExtra(Extra.OUTPUT_SINK, CallbackRegistry.register(sink));
+        return crop;
+    }
+
     private Crop(Uri source, Uri destination) {
         cropIntent = new Intent();
         cropIntent.setData(source);
-        cropIntent.putExtra(MediaStore.EXTRA_OUTPUT, destination);
+        if (destination != null) {
+            cropIntent.putExtra(MediaStore.EXTRA_OUTPUT, destination);
+        }
     }
 
     /**
@@ -89,6 +116,46 @@ public class Crop {
         return this;
     }
 
+    /**
+     * Compute a SHA-256 digest of the encoded output while it is written.
+     * Retrieve it with {@link #getContentHash(Intent)}.
+     * <p>
+     * The Exif orientation can't be written after the digest is taken, so it is applied to the pixels.
+     */
+    public Crop withContentHash() {
+        cropIntent.putExtra(Extra.CONTENT_HASH, true);
+        return this;
+    }
+
+    /**
+     * Compute a 64-bit difference hash (dHash) of the cropped pixels, for spotting near-duplicates.
+     * Retrieve it with {@link #getPerceptualHash(Intent)}.
+     */
+    public Crop withPerceptualHash() {
+        cropIntent.putExtra(Extra.PERCEPTUAL_HASH, true);
+        return this;
+    }
+
+    /**
+     * Generate a BlurHash and a thumbnail of at most 32px from the cropped pixels, for use as a placeholder.
+     * Retrieve them with {@link #getBlurHash(Intent)} and {@link #getThumbnail(Intent)}.
+     */
+    public Crop withPlaceholder() {
+        cropIntent.putExtra(Extra.PLACEHOLDER, true);
+        return this;
+    }
+
+    /**
+     * Report stage timings and memory use of the crop to a listener. The same metrics
+     * are also returned in the result, see {@link #getMetrics(Intent)}.
+     *
+     * @param listener Listener called on the main thread when the crop screen finishes
+     */
+    public Crop withMetrics(CropMetrics.Listener listener) {
+        cropIntent.putExtra(Extra.METRICS_LISTENER, CallbackRegistry.register(listener));
+        return this;
+    }
+
     /**
      * Send the crop Intent from an Activity
      *
@@ -181,6 +248,81 @@ public class Crop {
         return (Throwable) result.getSerializableExtra(Extra.ERROR);
     }
 
+    /**
+     * Retrieve how far the crop had to fall back to fit in memory
+     *
+     * @param result Result Intent
+     * @return 0 for a full quality crop, 1 if the image was decoded in strips,
+     *         or higher if the output was also halved in size (level - 1) times
+     */
+    public static int getDegradationLevel(Intent result) {
+        return result.getIntExtra(Extra.DEGRADATION, 0);
+    }
+
+    /**
+     * Retrieve the SHA-256 digest of the output, if requested with {@link #withContentHash()}
+     *
+     * @param result Result Intent
+     * @return Lowercase hex digest, or null
+     */
+    public static String getContentHash(Intent result) {
+        return result.getStringExtra(Extra.CONTENT_HASH);
+    }
+
+    /**
+     * Retrieve the dHash of the output, if requested with {@link #withPerceptualHash()}
+     *
+     * @param result Result Intent
+     * @return 64-bit hash of the image as displayed, or null
+     */
+    public static Long getPerceptualHash(Intent result) {
+        return result.hasExtra(Extra.PERCEPTUAL_HASH) ? result.getLongExtra(Extra.PERCEPTUAL_HASH, 0) : null;
+    }
+
+    /**
+     * Retrieve the BlurHash of the output, if requested with {@link #withPlaceholder()}
+     *
+     * @param result Result Intent
+     * @return BlurHash with 4x3 components, or null
+     */
+    public static String getBlurHash(Intent result) {
+        return result.getStringExtra(Extra.BLURHASH);
+    }
+
+    /**
+     * Retrieve a thumbnail of the output, if requested with {@link #withPlaceholder()}
+     *
+     * @param result Result Intent
+     * @return Bitmap of at most 32px on the longest side, or null
+     */
+    public static Bitmap getThumbnail(Intent result) {
+        return result.getParcelableExtra(Extra.THUMBNAIL);
+    }
+
+    /**
+     * Retrieve stage timings and memory use of the crop
+     *
+     * @param result Result Intent, for both successful and failed crops
+     * @return Metrics of the crop, or null
+     */
+    public static CropMetrics getMetrics(Intent result) {
+        Bundle bundle = result.getBundleExtra(Extra.METRICS);
+        return bundle != null ? CropMetrics.fromBundle(bundle) : null;
+    }
+
+    /**
+     * Start reading and decoding an image in the background, so that the crop screen opens
+     * with it ready. Call it as soon as the source is known, e.g. in onActivityResult after
+     * {@link #pickImage(Activity)}. Prefetching the same source again has no effect, and a
+     * prefetch that no crop screen uses within 30 seconds is discarded.
+     *
+     * @param context Context
+     * @param source  Uri for image to crop
+     */
+    public static void prefetch(Context context, Uri source) {
+        PreviewPrefetcher.prefetch(context, source);
+    }
+
     /**
      * Pick image from an Activity
      *
@@ -19,54 +19,87 @@ package com.soundcloud.android.crop;
 import android.annotation.TargetApi;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.net.Uri;
-import android.opengl.GLES10;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.provider.MediaStore;
+import android.support.annotation.NonNull;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.ProgressBar;
 
+import com.soundcloud.android.crop.core.CropPlanner;
+import com.soundcloud.android.crop.core.CropRect;
+import com.soundcloud.android.crop.core.Size;
+
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.CountDownLatch;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CancellationException;
 
 /*
  * Modified from original in AOSP.
  */
 public class CropImageActivity extends MonitoredActivity {
 
-    private static final int SIZE_DEFAULT = 2048;
-    private static final int SIZE_LIMIT = 4096;
+    private static final String STATE_SNAPSHOT = "crop_snapshot";
 
-    private final Handler handler = new Handler();
+    // Part of the progress bar given to cropping, the rest is for encoding
+    private static final float CROP_SHARE = 0.6F;
+    private static final int PROGRESS_MAX = 1000;
+    // Rough encoded size, only used to show progress while encoding
+    private static final float JPEG_BYTES_PER_PIXEL = 0.5F;
+    private static final float PNG_BYTES_PER_PIXEL = 2F;
 
-    private int aspectX;
-    private int aspectY;
+    private final Handler handler = new Handler();
 
     // Output image
     private int maxX;
     private int maxY;
     private int exifRotation;
     private boolean saveAsPng;
+    private boolean withContentHash;
+    private boolean withPerceptualHash;
+    private boolean withPlaceholder;
 
     private Uri sourceUri;
     private Uri saveUri;
+    private long outputSinkId;
+    private OutputSink outputSink;
 
     private boolean isSaving;
+    private CropProgress saveProgress;
+    private PendingSave pendingSave;
+    private ProgressBar progressBar;
+    private int degradation;
+    private MessageDigest contentDigest;
+    private String contentHash;
+    private Long perceptualHash;
+    private Placeholder placeholder;
+
+    private CropMetrics metrics = new CropMetrics();
+    private long metricsListenerId;
 
     private int sampleSize;
-    private RotateBitmap rotateBitmap;
-    private CropImageView imageView;
-    private HighlightView cropView;
+    private int sourceWidth;
+    private int sourceHeight;
+    private String sourceMimeType;
+    private CropView cropView;
+    private boolean retainingSession;
+    private boolean destroyed;
+    private SourceValidator sourceValidator;
+    // Save was clicked while the source was still being checked
+    private boolean saveWhenValidated;
+    // Done by the snapshot writer before it writes ours
+    private boolean deleteStaleSnapshots;
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -74,12 +107,15 @@ public class CropImageActivity extends MonitoredActivity {
         setupWindowFlags();
         setupViews();
 
-        loadInput();
-        if (rotateBitmap == null) {
+        long trace = CropTrace.begin("CropImageActivity.loadInput");
+        try {
+            loadInput(icicle);
+        } finally {
+            CropTrace.end("CropImageActivity.loadInput", trace);
+        }
+        if (cropView.getSession() == null && !isSaving) {
             finish();
-            return;
         }
-        startCrop();
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -93,18 +129,18 @@ public class CropImageActivity extends MonitoredActivity {
     private void setupViews() {
         setContentView(R.layout.crop__activity_crop);
 
-        imageView = (CropImageView) findViewById(R.id.crop_image);
-        imageView.context = this;
-        imageView.setRecycler(new ImageViewTouchBase.Recycler() {
-            @Override
-            public void recycle(Bitmap b) {
-                b.recycle();
-                System.gc();
+        cropView = (CropView) findViewById(R.id.crop_view);
+        progressBar = (ProgressBar) findViewById(R.id.crop_progress);
+        progressBar.setMax(PROGRESS_MAX);
+        cropView.setOnProgressListener(new CropView.OnProgressListener() {
+            public void onProgress(float fraction) {
+                reportProgress(fraction * CROP_SHARE);
             }
         });
 
         findViewById(R.id.btn_cancel).setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
+                cancelSave();
                 setResult(RESULT_CANCELED);
                 finish();
             }
@@ -112,312 +148,760 @@ public class CropImageActivity extends MonitoredActivity {
 
         findViewById(R.id.btn_done).setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                onSaveClicked();
+                long trace = CropTrace.begin("CropImageActivity.onSaveClicked");
+                try {
+                    onSaveClicked();
+                } finally {
+                    CropTrace.end("CropImageActivity.onSaveClicked", trace);
+                }
             }
         });
     }
 
-    private void loadInput() {
+    private void loadInput(Bundle icicle) {
         Intent intent = getIntent();
         Bundle extras = intent.getExtras();
 
         if (extras != null) {
-            aspectX = extras.getInt(Crop.Extra.ASPECT_X);
-            aspectY = extras.getInt(Crop.Extra.ASPECT_Y);
+            cropView.setAspect(extras.getInt(Crop.Extra.ASPECT_X), extras.getInt(Crop.Extra.ASPECT_Y));
             maxX = extras.getInt(Crop.Extra.MAX_X);
             maxY = extras.getInt(Crop.Extra.MAX_Y);
+            cropView.setMaxSize(maxX, maxY);
             saveAsPng = extras.getBoolean(Crop.Extra.AS_PNG, false);
+            withContentHash = extras.getBoolean(Crop.Extra.CONTENT_HASH, false);
+            withPerceptualHash = extras.getBoolean(Crop.Extra.PERCEPTUAL_HASH, false);
+            withPlaceholder = extras.getBoolean(Crop.Extra.PLACEHOLDER, false);
             saveUri = extras.getParcelable(MediaStore.EXTRA_OUTPUT);
+            outputSinkId = extras.getLong(Crop.Extra.OUTPUT_SINK);
+            metricsListenerId = extras.getLong(Crop.Extra.METRICS_LISTENER);
         }
 
-        sourceUri = intent.getData();
-        if (sourceUri != null) {
-            exifRotation = CropUtil.getExifRotation(CropUtil.getFromMediaUri(this, getContentResolver(), sourceUri));
+        if (outputSinkId != 0) {
+            outputSink = CallbackRegistry.get(outputSinkId);
+            if (outputSink == null) {
+                setResultException(new IllegalStateException("Output sink was lost, was the process restarted?"));
+                return;
+            }
+        }
 
-            InputStream is = null;
-            try {
-                sampleSize = calculateBitmapSampleSize(sourceUri);
-                is = getContentResolver().openInputStream(sourceUri);
-                BitmapFactory.Options option = new BitmapFactory.Options();
-                option.inSampleSize = sampleSize;
-                rotateBitmap = new RotateBitmap(BitmapFactory.decodeStream(is, null, option), exifRotation);
-            } catch (IOException e) {
-                Log.e("Error reading image: " + e.getMessage(), e);
-                setResultException(e);
-            } catch (OutOfMemoryError e) {
-                Log.e("OOM reading image: " + e.getMessage(), e);
-                setResultException(e);
-            } finally {
-                CropUtil.closeSilently(is);
+        // Started afresh, so any snapshot previews in the cache were left behind by earlier crop screens
+        deleteStaleSnapshots = icicle == null;
+        sourceUri = intent.getData();
+        PendingSave save = getRetainedSave();
+        if (save != null) {
+            resumeSave(save);
+            return;
+        }
+        CropSession session = getRetainedSession();
+        Bundle savedSnapshot = icicle != null ? icicle.getBundle(STATE_SNAPSHOT) : null;
+        if (session != null) {
+            showSession(session);
+        } else if (savedSnapshot == null || !restoreSnapshot(CropSnapshot.fromBundle(savedSnapshot))) {
+            session = sourceUri != null ? PreviewPrefetcher.take(sourceUri) : null;
+            if (session != null) {
+                showLoadedSession(session);
+            } else {
+                loadSource();
             }
         }
     }
 
-    private int calculateBitmapSampleSize(Uri bitmapUri) throws IOException {
-        InputStream is = null;
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
+    private void loadSource() {
+        if (sourceUri == null) {
+            return;
+        }
         try {
-            is = getContentResolver().openInputStream(bitmapUri);
-            BitmapFactory.decodeStream(is, null, options); // Just get image size
-        } finally {
-            CropUtil.closeSilently(is);
+            showLoadedSession(PreviewLoader.load(this, sourceUri));
+        } catch (IOException e) {
+            Log.e("Error reading image: " + e.getMessage(), e);
+            setResultException(e);
+        } catch (OutOfMemoryError e) {
+            Log.e("OOM reading image: " + e.getMessage(), e);
+            setResultException(e);
         }
+    }
 
-        int maxSize = getMaxImageSize();
-        int sampleSize = 1;
-        while (options.outHeight / sampleSize > maxSize || options.outWidth / sampleSize > maxSize) {
-            sampleSize = sampleSize << 1;
+    @SuppressWarnings("deprecation")
+    private PendingSave getRetainedSave() {
+        Object retained = getLastNonConfigurationInstance();
+        return retained instanceof PendingSave ? (PendingSave) retained : null;
+    }
+
+    // The device was rotated during a save, which carries on and finishes us when it's done
+    private void resumeSave(PendingSave save) {
+        pendingSave = save;
+        isSaving = true;
+        metrics = save.origin.metrics;
+        cropView.imageView.locked = true;
+        progressBar.setProgress((int) (save.fraction * PROGRESS_MAX));
+        progressBar.setVisibility(View.VISIBLE);
+        save.handOver(this);
+    }
+
+    @SuppressWarnings("deprecation")
+    private CropSession getRetainedSession() {
+        Object retained = getLastNonConfigurationInstance();
+        if (retained instanceof CropSession && sourceUri != null && ((CropSession) retained).isFor(sourceUri)) {
+            return (CropSession) retained;
         }
-        return sampleSize;
+        return null;
     }
 
-    private int getMaxImageSize() {
-        int textureLimit = getMaxTextureSize();
-        if (textureLimit == 0) {
-            return SIZE_DEFAULT;
-        } else {
-            return Math.min(textureLimit, SIZE_LIMIT);
+    // The decoder returns null for a source it can't read, which leaves nothing to crop
+    private void showLoadedSession(CropSession session) {
+        if (session.preview.getBitmap() == null) {
+            Log.e("Cannot decode image: " + sourceUri);
+            setResultException(new IOException("Cannot decode " + sourceUri));
+            finish();
+            return;
         }
+        showSession(session);
     }
 
-    private int getMaxTextureSize() {
-        // The OpenGL texture size is the maximum size that can be drawn in an ImageView
-        int[] maxSize = new int[1];
-        GLES10.glGetIntegerv(GLES10.GL_MAX_TEXTURE_SIZE, maxSize, 0);
-        return maxSize[0];
+    private void showSession(CropSession session) {
+        exifRotation = session.preview.getRotation();
+        sampleSize = session.sampleSize;
+        sourceWidth = session.sourceWidth;
+        sourceHeight = session.sourceHeight;
+        sourceMimeType = session.sourceMimeType;
+        metrics = session.metrics;
+        cropView.setSession(session);
+        if (session.previewFromSnapshot) {
+            validateSnapshot(session.snapshot);
+        } else if (session.snapshot == null && !session.writingSnapshot) {
+            writeSnapshot(session);
+        }
     }
 
-    private void startCrop() {
-        if (isFinishing()) {
+    /*
+     * Writes the cached copy of the preview in the background, so it's ready by the time our
+     * state is saved. Only the crop area and zoom change after this, and they go in the Bundle.
+     */
+    private void writeSnapshot(final CropSession session) {
+        final Bitmap bitmap = session.preview.getBitmap();
+        if (bitmap == null || sourceUri == null) {
             return;
         }
-        imageView.setImageRotateBitmapResetBase(rotateBitmap, true);
-        CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__wait),
-                new Runnable() {
+        // Released by the writer, so the preview outlives a crop screen closed in the meantime
+        PreviewCache.acquire(bitmap);
+        session.writingSnapshot = true;
+        final RotateBitmap preview = new RotateBitmap(bitmap, session.preview.getRotation());
+        final long sourceBytes = metrics.getSourceFileBytes();
+        final boolean deleteStale = deleteStaleSnapshots;
+        deleteStaleSnapshots = false;
+        new Thread(new Runnable() {
+            public void run() {
+                CropSnapshot written = null;
+                long trace = CropTrace.begin("CropImageActivity.writeSnapshot");
+                try {
+                    if (deleteStale) {
+                        CropSnapshot.deleteStale(CropImageActivity.this);
+                    }
+                    written = CropSnapshot.create(CropImageActivity.this, sourceUri, preview, session.sampleSize,
+                            sourceBytes, session.sourceWidth, session.sourceHeight, session.sourceMimeType);
+                } catch (IOException e) {
+                    Log.e("Cannot write snapshot: " + e.getMessage(), e);
+                } catch (OutOfMemoryError e) {
+                    Log.e("OOM writing snapshot: " + e.getMessage(), e);
+                } finally {
+                    PreviewCache.recycle(bitmap);
+                    CropTrace.end("CropImageActivity.writeSnapshot", trace);
+                }
+                final CropSnapshot result = written;
+                handler.post(new Runnable() {
                     public void run() {
-                        final CountDownLatch latch = new CountDownLatch(1);
-                        handler.post(new Runnable() {
-                            public void run() {
-                                if (imageView.getScale() == 1F) {
-                                    imageView.center();
-                                }
-                                latch.countDown();
-                            }
-                        });
-                        try {
-                            latch.await();
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
+                        session.writingSnapshot = false;
+                        if (result == null) {
+                            return;
+                        }
+                        if (cropView.getSession() != session || (destroyed && !retainingSession)) {
+                            // Nobody is showing the preview any more
+                            result.delete();
+                            return;
                         }
-                        new Cropper().crop();
+                        session.snapshot = result;
                     }
-                }, handler
-        );
+                });
+            }
+        }, "crop-snapshot").start();
     }
 
-    private class Cropper {
-
-        private void makeDefault() {
-            if (rotateBitmap == null) {
-                return;
-            }
+    /*
+     * Shows the cached preview of a crop screen that was killed along with its process,
+     * at the crop area and zoom it was left at. The source is checked in the background.
+     */
+    private boolean restoreSnapshot(CropSnapshot saved) {
+        if (saved == null || !saved.sourceUri.equals(sourceUri)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        Bitmap preview = saved.readPreview();
+        if (preview == null) {
+            return false;
+        }
+        metrics.endStage(CropMetrics.Stage.PREVIEW_DECODE, start, CropMetrics.sizeOf(preview));
+        metrics.allocated(preview);
+        metrics.setSampleSize(saved.sampleSize);
+        metrics.setSourceBytes(saved.sourceBytes);
+
+        RotateBitmap rotateBitmap = new RotateBitmap(preview, saved.exifRotation);
+        CropSession session = new CropSession(sourceUri, rotateBitmap, saved.sampleSize,
+                saved.sourceWidth, saved.sourceHeight, saved.sourceMimeType, metrics);
+        float[] r = saved.cropRect;
+        if (r != null && r.length == 4) {
+            int width = rotateBitmap.getWidth();
+            int height = rotateBitmap.getHeight();
+            session.cropRect = new CropRect(r[0] * width, r[1] * height, r[2] * width, r[3] * height);
+        }
+        session.suppMatrix = saved.suppMatrix;
+        session.snapshot = saved;
+        session.previewFromSnapshot = true;
+        showSession(session);
+        return true;
+    }
 
-            HighlightView hv = new HighlightView(imageView);
-            final int width = rotateBitmap.getWidth();
-            final int height = rotateBitmap.getHeight();
+    private void validateSnapshot(CropSnapshot snapshot) {
+        if (snapshot != null && !snapshot.validated) {
+            sourceValidator = new SourceValidator(snapshot);
+            new Thread(sourceValidator, "crop-validate").start();
+        }
+    }
 
-            Rect imageRect = new Rect(0, 0, width, height);
+    // The source changed while we were gone, so start over from it
+    private void reloadSource() {
+        if (isFinishing() || isSaving) {
+            return;
+        }
+        Log.e("Source changed since the crop screen was saved, reloading " + sourceUri);
+        saveWhenValidated = false;
+        discardSnapshot();
+        cropView.release();
+        metrics = new CropMetrics();
+        loadSource();
+        if (cropView.getSession() == null) {
+            finish();
+        }
+    }
 
-            // Make the default size about 4/5 of the width or height
-            int cropWidth = Math.min(width, height) * 4 / 5;
-            @SuppressWarnings("SuspiciousNameCombination")
-            int cropHeight = cropWidth;
+    private void discardSnapshot() {
+        sourceValidator = null;
+        CropSession session = cropView.getSession();
+        if (session != null && session.snapshot != null) {
+            session.snapshot.delete();
+            session.snapshot = null;
+        }
+    }
 
-            if (aspectX != 0 && aspectY != 0) {
-                if (aspectX > aspectY) {
-                    cropHeight = cropWidth * aspectY / aspectX;
-                } else {
-                    cropWidth = cropHeight * aspectX / aspectY;
-                }
-            }
+    /*
+     * Checks that the source still matches the snapshot the preview was restored from,
+     * and carries out a save that was waiting for it.
+     */
+    private class SourceValidator implements Runnable {
 
-            int x = (width - cropWidth) / 2;
-            int y = (height - cropHeight) / 2;
+        private final CropSnapshot snapshot;
 
-            RectF cropRect = new RectF(x, y, x + cropWidth, y + cropHeight);
-            hv.setup(imageView.getUnrotatedMatrix(), imageRect, cropRect, aspectX != 0 && aspectY != 0);
-            imageView.add(hv);
+        SourceValidator(CropSnapshot snapshot) {
+            this.snapshot = snapshot;
         }
 
-        public void crop() {
+        public void run() {
+            final boolean changed = !snapshot.matchesSource(getContentResolver(),
+                    PreviewLoader.getSourceBytes(getContentResolver(), sourceUri));
             handler.post(new Runnable() {
                 public void run() {
-                    makeDefault();
-                    imageView.invalidate();
-                    if (imageView.highlightViews.size() == 1) {
-                        cropView = imageView.highlightViews.get(0);
-                        cropView.setFocus(true);
+                    if (sourceValidator != SourceValidator.this) {
+                        return;
+                    }
+                    sourceValidator = null;
+                    if (changed) {
+                        reloadSource();
+                    } else {
+                        snapshot.validated = true;
+                        if (saveWhenValidated) {
+                            saveWhenValidated = false;
+                            onSaveClicked();
+                        }
                     }
                 }
             });
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        CropSnapshot state = takeSnapshot();
+        if (state != null) {
+            outState.putBundle(STATE_SNAPSHOT, state.toBundle());
+        }
+    }
+
+    // Null until the preview has been written, in which case there's nothing to restore from
+    private CropSnapshot takeSnapshot() {
+        CropSession session = cropView.getSession();
+        if (session == null || session.cropRect == null || session.preview.getBitmap() == null || isSaving) {
+            return null;
+        }
+        CropSnapshot snapshot = session.snapshot;
+        if (snapshot == null) {
+            return null;
+        }
+        int width = session.preview.getWidth();
+        int height = session.preview.getHeight();
+        CropRect r = session.cropRect;
+        snapshot.cropRect = new float[] {r.left / width, r.top / height, r.right / width, r.bottom / height};
+        snapshot.suppMatrix = session.suppMatrix;
+        return snapshot;
+    }
+
+    // Hand the decoded preview, crop area and zoom over to the Activity that replaces us
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object onRetainNonConfigurationInstance() {
+        if (isSaving) {
+            // The save carries on, and reports to the Activity that replaces us
+            return pendingSave;
+        }
+        CropSession session = cropView.getSession();
+        if (session == null || session.preview.getBitmap() == null) {
+            return null;
+        }
+        retainingSession = true;
+        return session;
+    }
+
     private void onSaveClicked() {
-        if (cropView == null || isSaving) {
+        if (!cropView.hasCropArea() || isSaving) {
+            return;
+        }
+        if (sourceValidator != null) {
+            // Don't crop a source that no longer matches the preview the crop was made on
+            saveWhenValidated = true;
             return;
         }
         isSaving = true;
+        pendingSave = new PendingSave(this);
+        cropView.imageView.locked = true;
+        saveProgress = new CropProgress(new CropProgress.Listener() {
+            public void onProgress(final float fraction) {
+                handler.post(new Runnable() {
+                    public void run() {
+                        reportProgress(fraction);
+                    }
+                });
+            }
+        });
+        progressBar.setProgress(0);
+        progressBar.setVisibility(View.VISIBLE);
 
-        Bitmap croppedImage;
-        Rect r = cropView.getScaledCropRect(sampleSize);
-        int width = r.width();
-        int height = r.height();
-
-        int outWidth = width;
-        int outHeight = height;
-        if (maxX > 0 && maxY > 0 && (width > maxX || height > maxY)) {
-            float ratio = (float) width / (float) height;
-            if ((float) maxX / (float) maxY > ratio) {
-                outHeight = maxY;
-                outWidth = (int) ((float) maxY * ratio + .5f);
-            } else {
-                outWidth = maxX;
-                outHeight = (int) ((float) maxX / ratio + .5f);
+        Rect r = cropView.getScaledCropRect();
+        if (canCopySource(r)) {
+            cropView.cancelSpeculativeCrop();
+            copySource();
+            return;
+        }
+        cropView.crop(new CropView.Callback() {
+            @Override
+            public void onCropped(CropView.Result result) {
+                onCropFinished(result);
             }
+        }, true);
+    }
+
+    // To the crop screen showing now, which isn't us if the device was rotated during the save
+    private void reportProgress(float fraction) {
+        if (pendingSave != null) {
+            pendingSave.showProgress(fraction);
         }
+    }
 
-        try {
-            croppedImage = decodeRegionCrop(r, outWidth, outHeight);
-        } catch (IllegalArgumentException e) {
-            setResultException(e);
-            finish();
-            return;
+    private void showProgress(float fraction) {
+        if (!destroyed && isSaving) {
+            progressBar.setProgress(Math.max(progressBar.getProgress(), (int) (fraction * PROGRESS_MAX)));
         }
+    }
 
-        if (croppedImage != null) {
-            imageView.setImageRotateBitmapResetBase(new RotateBitmap(croppedImage, exifRotation), true);
-            imageView.center();
-            imageView.highlightViews.clear();
+    // Stops the crop or save at its next checkpoint, and frees its bitmaps
+    private void cancelSave() {
+        if (isSaving) {
+            pendingSave.cancel();
+        }
+    }
+
+    // Finishes the crop screen showing now with our result, once the save is done
+    private void finishSave() {
+        handler.post(new Runnable() {
+            public void run() {
+                pendingSave.finish();
+            }
+        });
+    }
+
+    private void onCropFinished(CropView.Result result) {
+        degradation = result.getDegradationLevel();
+        Bitmap croppedImage = result.getBitmap();
+        if (destroyed && isFinishing()) {
+            if (croppedImage != null) {
+                croppedImage.recycle();
+            }
+            return;
         }
+        if (result.getError() != null) {
+            setResultException(result.getError());
+            finishSave();
+            return;
+        }
+        // Keep ignoring touches while we save
+        cropView.imageView.locked = true;
+        cropView.imageView.setImageRotateBitmapResetBase(new RotateBitmap(croppedImage, exifRotation), true);
+        cropView.imageView.center();
+        // Nothing needs the preview once the crop is shown in its place
+        CropSession session = cropView.getSession();
+        metrics.released(session.preview.getBitmap());
+        PreviewCache.recycle(session.preview);
         saveImage(croppedImage);
     }
 
-    private void saveImage(Bitmap croppedImage) {
-        if (croppedImage != null) {
-            final Bitmap b = croppedImage;
-            CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__saving),
-                    new Runnable() {
-                        public void run() {
-                            saveOutput(b);
-                        }
-                    }, handler
-            );
-        } else {
-            finish();
+    private Point getOutputSize(Rect r) {
+        Size size = CropPlanner.outputSize(r.width(), r.height(), maxX, maxY);
+        return new Point(size.width, size.height);
+    }
+
+    /*
+     * If the crop covers the whole image, needs no scaling and is saved in the source
+     * format, decoding and encoding again would only lose quality.
+     */
+    private boolean canCopySource(Rect r) {
+        if ((saveUri == null && outputSink == null) || sourceMimeType == null) {
+            return false;
+        }
+        if (outputSink != null && exifRotation != 0) {
+            // Sinks get the rotation applied to the pixels, which the source bytes don't have
+            return false;
+        }
+        boolean sameFormat = saveAsPng ? "image/png".equals(sourceMimeType) : "image/jpeg".equals(sourceMimeType);
+        if (!sameFormat) {
+            return false;
+        }
+        boolean rotated = (exifRotation / 90) % 2 != 0;
+        int width = rotated ? sourceHeight : sourceWidth;
+        int height = rotated ? sourceWidth : sourceHeight;
+
+        // The crop rect is scaled up from the preview, so allow for sub-sampling error
+        boolean wholeImage = r.left < sampleSize && r.top < sampleSize
+                && r.right > width - sampleSize && r.bottom > height - sampleSize;
+        if (!wholeImage) {
+            return false;
         }
+        Point outSize = getOutputSize(new Rect(0, 0, width, height));
+        return outSize.x == width && outSize.y == height;
     }
 
-    private Bitmap decodeRegionCrop(Rect rect, int outWidth, int outHeight) {
-        // Release memory now
-        clearImageView();
+    private void copySource() {
+        Bitmap preview = cropView.getSession().preview.getBitmap();
+        if (preview != null) {
+            // The crop is the whole image, so the preview gives the same result
+            if (withPerceptualHash) {
+                perceptualHash = ImageHashes.dHash(preview, exifRotation);
+            }
+            if (withPlaceholder) {
+                placeholder = Placeholder.create(preview, exifRotation);
+            }
+        }
+        CropUtil.startBackgroundJob(this,
+                new Runnable() {
+                    public void run() {
+                        try {
+                            long start = System.nanoTime();
+                            saveProgress.phase(0F, 1F);
+                            if (outputSink != null) {
+                                copySourceToSink();
+                            } else {
+                                CropUtil.copy(getContentResolver(), sourceUri, saveUri, newContentDigest(),
+                                        saveProgress, metrics.getSourceFileBytes());
+                                metrics.setOutputBytes(metrics.getSourceFileBytes());
+                            }
+                            metrics.endStage(CropMetrics.Stage.COMPRESS, start, Math.max(0, metrics.getOutputFileBytes()));
+                            finishContentHash();
+                            setResultOk();
+                        } catch (IOException e) {
+                            setResultException(e);
+                            Log.e("Cannot copy image: " + saveUri, e);
+                            if (outputSink != null) {
+                                outputSink.onError(e);
+                            }
+                        } catch (CancellationException e) {
+                            // A file destination is only replaced once the copy is complete
+                            if (outputSink != null) {
+                                outputSink.onCancelled();
+                            }
+                        }
+                        finishSave();
+                    }
+                }, saveProgress, handler
+        );
+    }
 
-        InputStream is = null;
-        Bitmap croppedImage = null;
+    private void copySourceToSink() throws IOException {
+        InputStream input = null;
+        CountingOutputStream counter = null;
+        OutputStream output = null;
+        boolean copied = false;
         try {
-            is = getContentResolver().openInputStream(sourceUri);
-            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
-            final int width = decoder.getWidth();
-            final int height = decoder.getHeight();
-
-            if (exifRotation != 0) {
-                // Adjust crop area to account for image rotation
-                Matrix matrix = new Matrix();
-                matrix.setRotate(-exifRotation);
-
-                RectF adjusted = new RectF();
-                matrix.mapRect(adjusted, new RectF(rect));
-
-                // Adjust to account for origin at 0,0
-                adjusted.offset(adjusted.left < 0 ? width : 0, adjusted.top < 0 ? height : 0);
-                rect = new Rect((int) adjusted.left, (int) adjusted.top, (int) adjusted.right, (int) adjusted.bottom);
+            input = getContentResolver().openInputStream(sourceUri);
+            counter = new CountingOutputStream(outputSink.open());
+            output = tapContentHash(counter);
+            if (input == null) {
+                throw new IOException("Cannot open " + sourceUri);
             }
-
-            try {
-                croppedImage = decoder.decodeRegion(rect, new BitmapFactory.Options());
-                if (croppedImage != null && (rect.width() > outWidth || rect.height() > outHeight)) {
-                    Matrix matrix = new Matrix();
-                    matrix.postScale((float) outWidth / rect.width(), (float) outHeight / rect.height());
-                    croppedImage = Bitmap.createBitmap(croppedImage, 0, 0, croppedImage.getWidth(), croppedImage.getHeight(), matrix, true);
-                }
-            } catch (IllegalArgumentException e) {
-                // Rethrow with some extra information
-                throw new IllegalArgumentException("Rectangle " + rect + " is outside of the image ("
-                        + width + "," + height + "," + exifRotation + ")", e);
+            CropUtil.copy(input, output, saveProgress, metrics.getSourceFileBytes());
+            copied = true;
+            output.close();
+        } finally {
+            CropUtil.closeSilently(input);
+            if (!copied) {
+                outputSink.abort();
             }
+            CropUtil.closeSilently(output);
+        }
+        metrics.setOutputBytes(counter.count);
+        finishContentHash();
+        outputSink.onComplete();
+    }
 
-        } catch (IOException e) {
-            Log.e("Error cropping image: " + e.getMessage(), e);
-            setResultException(e);
-        } catch (OutOfMemoryError e) {
-            Log.e("OOM cropping image: " + e.getMessage(), e);
-            setResultException(e);
-        } finally {
-            CropUtil.closeSilently(is);
+    private MessageDigest newContentDigest() {
+        contentDigest = withContentHash ? ImageHashes.newSha256() : null;
+        return contentDigest;
+    }
+
+    // Hashes the encoded bytes on their way out, if a content hash was requested
+    private OutputStream tapContentHash(OutputStream outputStream) {
+        MessageDigest digest = newContentDigest();
+        if (digest == null || outputStream == null) {
+            return outputStream;
+        }
+        return new DigestOutputStream(outputStream, digest);
+    }
+
+    private void finishContentHash() {
+        if (contentDigest != null) {
+            contentHash = ImageHashes.toHex(contentDigest.digest());
+            contentDigest = null;
         }
-        return croppedImage;
     }
 
-    private void clearImageView() {
-        imageView.clear();
-        if (rotateBitmap != null) {
-            rotateBitmap.recycle();
+    private void saveImage(Bitmap croppedImage) {
+        if (croppedImage != null) {
+            final Bitmap b = croppedImage;
+            CropUtil.startBackgroundJob(this,
+                    new Runnable() {
+                        public void run() {
+                            long trace = CropTrace.begin("CropImageActivity.saveOutput");
+                            try {
+                                saveOutput(b);
+                            } finally {
+                                CropTrace.end("CropImageActivity.saveOutput", trace);
+                            }
+                        }
+                    }, saveProgress, handler
+            );
+        } else {
+            finishSave();
         }
-        System.gc();
     }
 
-    private void saveOutput(Bitmap croppedImage) {
+    private void saveOutput(final Bitmap croppedImage) {
         if (saveUri != null) {
-            OutputStream outputStream = null;
+            // Writing the Exif orientation afterwards would change the bytes we hashed
+            final boolean applyRotation = withContentHash;
+            boolean saved = false;
             try {
-                outputStream = getContentResolver().openOutputStream(saveUri);
-                if (outputStream != null) {
-                    croppedImage.compress(saveAsPng ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
-                            90,     // note: quality is ignored when using PNG
-                            outputStream);
-                }
+                // A failed or cancelled save leaves a file that was there before alone
+                CropUtil.write(getContentResolver(), saveUri, new CropUtil.OutputWriter() {
+                    public void writeTo(OutputStream output) throws IOException {
+                        encode(croppedImage, tapContentHash(output), applyRotation);
+                    }
+                });
+                saved = true;
             } catch (IOException e) {
                 setResultException(e);
-                Log.e("Cannot open file: " + saveUri, e);
-            } finally {
-                CropUtil.closeSilently(outputStream);
+                Log.e("Cannot write file: " + saveUri, e);
+            } catch (OutOfMemoryError e) {
+                setResultException(e);
+                Log.e("OOM rotating image: " + saveUri, e);
+            } catch (CancellationException e) {
+                // Cancelled along with the activity, so there's no result to report
+            }
+            finishContentHash();
+
+            if (saved && !applyRotation) {
+                long start = System.nanoTime();
+                CropUtil.copyExifRotation(
+                        CropUtil.getFromMediaUri(this, getContentResolver(), sourceUri),
+                        CropUtil.getFromMediaUri(this, getContentResolver(), saveUri)
+                );
+                metrics.endStage(CropMetrics.Stage.EXIF_WRITE, start, 0);
             }
 
-            CropUtil.copyExifRotation(
-                    CropUtil.getFromMediaUri(this, getContentResolver(), sourceUri),
-                    CropUtil.getFromMediaUri(this, getContentResolver(), saveUri)
-            );
-
-            setResultUri(saveUri);
+            if (saved) {
+                setResultOk();
+            }
+        } else if (outputSink != null) {
+            try {
+                saveToSink(croppedImage);
+                setResultOk();
+            } catch (IOException e) {
+                setResultException(e);
+                Log.e("Cannot write to output sink", e);
+                outputSink.onError(e);
+            } catch (OutOfMemoryError e) {
+                setResultException(e);
+                Log.e("OOM rotating image for output sink", e);
+                outputSink.onError(e);
+            } catch (CancellationException e) {
+                outputSink.onCancelled();
+            }
         }
 
         final Bitmap b = croppedImage;
         handler.post(new Runnable() {
             public void run() {
-                imageView.clear();
+                cropView.imageView.clear();
                 b.recycle();
             }
         });
 
-        finish();
+        finishSave();
+    }
+
+    private void saveToSink(Bitmap croppedImage) throws IOException {
+        OutputStream outputStream = null;
+        boolean encoded = false;
+        try {
+            outputStream = tapContentHash(outputSink.open());
+            // There's no file to copy the Exif orientation to, so bake it into the pixels
+            encode(croppedImage, outputStream, true);
+            encoded = true;
+            outputStream.close();
+        } finally {
+            if (!encoded) {
+                outputSink.abort();
+            }
+            CropUtil.closeSilently(outputStream);
+        }
+        finishContentHash();
+        outputSink.onComplete();
+    }
+
+    private void encode(Bitmap croppedImage, OutputStream outputStream, boolean applyRotation)
+            throws IOException {
+        Bitmap output = croppedImage;
+        saveProgress.phase(CROP_SHARE, 1F);
+        if (applyRotation && exifRotation != 0) {
+            long start = System.nanoTime();
+            Matrix matrix = new Matrix();
+            matrix.setRotate(exifRotation);
+            output = Bitmap.createBitmap(croppedImage, 0, 0,
+                    croppedImage.getWidth(), croppedImage.getHeight(), matrix, true);
+            metrics.endStage(CropMetrics.Stage.ROTATE, start, CropMetrics.sizeOf(output));
+            metrics.allocated(output);
+        }
+        try {
+            saveProgress.checkpoint();
+            long start = System.nanoTime();
+            float bytesPerPixel = saveAsPng ? PNG_BYTES_PER_PIXEL : JPEG_BYTES_PER_PIXEL;
+            CountingOutputStream counter = new CountingOutputStream(outputStream, saveProgress,
+                    (long) (bytesPerPixel * output.getWidth() * output.getHeight()));
+            boolean encoded = output.compress(saveAsPng ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                    90,     // note: quality is ignored when using PNG
+                    counter);
+            // The encoder swallows exceptions from the stream and just stops, so check here
+            saveProgress.checkpoint();
+            if (!encoded) {
+                throw new IOException("Cannot encode image");
+            }
+            saveProgress.update(1F);
+            metrics.endStage(CropMetrics.Stage.COMPRESS, start, counter.count);
+            metrics.setOutputBytes(counter.count);
+            int rotation = output != croppedImage ? 0 : exifRotation;
+            if (withPerceptualHash) {
+                perceptualHash = ImageHashes.dHash(output, rotation);
+            }
+            if (withPlaceholder) {
+                placeholder = Placeholder.create(output, rotation);
+            }
+        } finally {
+            if (output != croppedImage) {
+                metrics.released(output);
+                output.recycle();
+            }
+        }
+    }
+
+    // Counts the encoded bytes on their way out, and reports them against the expected size
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private final CropProgress progress;
+        private final long expected;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this(out, null, 0);
+        }
+
+        CountingOutputStream(OutputStream out, CropProgress progress, long expected) {
+            super(out);
+            this.progress = progress;
+            this.expected = expected;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (progress != null) {
+                // Between chunks from the encoder, which stops when this throws
+                progress.update(expected > 0 ? (float) count / expected : 0F);
+            }
+            // FilterOutputStream would write byte by byte
+            out.write(b, off, len);
+            count += len;
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (rotateBitmap != null) {
-            rotateBitmap.recycle();
+        destroyed = true;
+        sourceValidator = null;
+        if (isFinishing()) {
+            discardSnapshot();
+        }
+        if (isFinishing() && outputSinkId != 0) {
+            CallbackRegistry.remove(outputSinkId);
+        }
+        if (isFinishing() && metricsListenerId != 0) {
+            CropMetrics.Listener listener = CallbackRegistry.get(metricsListenerId);
+            CallbackRegistry.remove(metricsListenerId);
+            if (listener != null) {
+                listener.onCropMetrics(metrics);
+            }
+        }
+        if (retainingSession) {
+            // The preview is now shown by the Activity that replaced us
+            cropView.cancelSpeculativeCrop();
+        } else if (isSaving) {
+            if (isFinishing()) {
+                // A save job in progress is cancelled along with us, and frees the cropped image
+                cancelSave();
+            }
+            // Otherwise the save carries on for the Activity that replaces us
+        } else {
+            cropView.release();
         }
     }
 
@@ -430,12 +914,100 @@ public class CropImageActivity extends MonitoredActivity {
         return isSaving;
     }
 
-    private void setResultUri(Uri uri) {
-        setResult(RESULT_OK, new Intent().putExtra(MediaStore.EXTRA_OUTPUT, uri));
+    // Also kept for the Activity that replaces us, if the device is rotated during the save
+    private void setSaveResult(int resultCode, Intent data) {
+        setResult(resultCode, data);
+        if (pendingSave != null) {
+            pendingSave.setResult(resultCode, data);
+        }
+    }
+
+    private void setResultOk() {
+        Intent result = new Intent()
+                .putExtra(Crop.Extra.DEGRADATION, degradation)
+                .putExtra(Crop.Extra.METRICS, metrics.toBundle());
+        if (saveUri != null) {
+            result.putExtra(MediaStore.EXTRA_OUTPUT, saveUri);
+        }
+        if (contentHash != null) {
+            result.putExtra(Crop.Extra.CONTENT_HASH, contentHash);
+        }
+        if (perceptualHash != null) {
+            result.putExtra(Crop.Extra.PERCEPTUAL_HASH, perceptualHash.longValue());
+        }
+        if (placeholder != null) {
+            result.putExtra(Crop.Extra.BLURHASH, placeholder.blurHash);
+            result.putExtra(Crop.Extra.THUMBNAIL, placeholder.thumbnail);
+        }
+        setSaveResult(RESULT_OK, result);
     }
 
     private void setResultException(Throwable throwable) {
-        setResult(Crop.RESULT_ERROR, new Intent().putExtra(Crop.Extra.ERROR, throwable));
+        setSaveResult(Crop.RESULT_ERROR, new Intent()
+                .putExtra(Crop.Extra.ERROR, throwable)
+                .putExtra(Crop.Extra.METRICS, metrics.toBundle()));
+    }
+
+    /*
+     * A save that carries on when the device is rotated. The Activity that started it keeps
+     * running it after it's destroyed, and hands the progress and the result over to the one
+     * showing at the time, which gets this through onRetainNonConfigurationInstance.
+     */
+    private static class PendingSave {
+
+        final CropImageActivity origin;
+        // Main thread only
+        private CropImageActivity current;
+        private boolean finished;
+        private boolean cancelled;
+        float fraction;
+
+        // Set on the save's thread, read on the main thread once it has finished
+        private volatile int resultCode = RESULT_CANCELED;
+        private volatile Intent resultData;
+
+        PendingSave(CropImageActivity origin) {
+            this.origin = origin;
+            this.current = origin;
+        }
+
+        void setResult(int resultCode, Intent resultData) {
+            this.resultData = resultData;
+            this.resultCode = resultCode;
+        }
+
+        void showProgress(float fraction) {
+            this.fraction = Math.max(this.fraction, fraction);
+            current.showProgress(fraction);
+        }
+
+        void cancel() {
+            cancelled = true;
+            origin.cropView.cancelCrop();
+            origin.saveProgress.cancel();
+        }
+
+        void handOver(CropImageActivity next) {
+            current = next;
+            if (finished && !cancelled) {
+                deliver();
+            }
+        }
+
+        // Waits for handOver() if the crop screen showing is being replaced
+        void finish() {
+            finished = true;
+            if (!cancelled && !current.destroyed) {
+                deliver();
+            }
+        }
+
+        private void deliver() {
+            if (current != origin) {
+                current.setResult(resultCode, resultData);
+            }
+            current.finish();
+        }
     }
 
 }
@@ -1,24 +1,111 @@
 package com.soundcloud.android.crop;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PointF;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.WindowManager;
+import android.widget.OverScroller;
 
 import java.util.ArrayList;
 
+/**
+ * Image view that shows the crop rectangle, and handles dragging it and zooming and panning
+ * the image. With software rendering the image is drawn from a cached layer while only the
+ * crop rectangle changes. Hardware accelerated windows, the default since API 14, already
+ * keep the image as a texture and don't use the layer.
+ */
 public class CropImageView extends ImageViewTouchBase {
 
+    private static final float DOUBLE_TAP_SCALE = 3F;
+    private static final float DOUBLE_TAP_DURATION_MS = 300F;
+
+    // Notified when the user starts and stops adjusting a crop rectangle
+    interface CropRectListener {
+        void onCropRectChanging();
+        void onCropRectSettled();
+    }
+
+    /**
+     * Receives drawing performance metrics. Called on the UI thread, and must not hold on to
+     * the {@link FrameStats}, which is reused.
+     */
+    public interface FrameMetricsListener {
+        /**
+         * Called after each frame is drawn
+         *
+         * @param imageNanos   Time spent drawing the image
+         * @param overlayNanos Time spent drawing the crop overlay
+         * @param dropped      Number of display frames missed before this one during an interaction
+         */
+        void onFrame(long imageNanos, long overlayNanos, int dropped);
+
+        /**
+         * Called with a summary when the view is detached from its window
+         */
+        void onSessionEnd(FrameStats stats);
+    }
+
     ArrayList<HighlightView> highlightViews = new ArrayList<HighlightView>();
     HighlightView motionHighlightView;
-    Context context;
+    // Ignores touches while set, e.g. while the crop is being saved
+    boolean locked;
 
     private float lastX;
     private float lastY;
     private int motionEdge;
     private int validPointerId;
+    private CropRectListener cropRectListener;
+
+    private final LatencyStats touchLatency = new LatencyStats();
+    private boolean motionFrameScheduled;
+    private boolean hasPendingMotion;
+    private float pendingX;
+    private float pendingY;
+    private long pendingSinceMillis;
+
+    // Image gestures, used when the touch isn't on a crop rectangle
+    private final ScaleGestureDetector scaleDetector = new ScaleGestureDetector(getContext(), new ScaleListener());
+    private final GestureDetector gestureDetector = new GestureDetector(getContext(), new GestureListener());
+    private final OverScroller scroller = new OverScroller(getContext());
+    private final RectF imageBounds = new RectF();
+    private final PointF centerDelta = new PointF();
+    private float pendingScale = 1F;
+    private float pendingFocusX;
+    private float pendingFocusY;
+    private float pendingPanX;
+    private float pendingPanY;
+    private int flingX;
+    private int flingY;
+
+    // Frame metrics, only collected while a listener is set
+    private FrameMetricsListener frameMetricsListener;
+    private final FrameStats frameStats = new FrameStats();
+    private long frameIntervalNanos;
+    private long lastInteractiveDrawNanos;
+    // Set when the frame being drawn applied touch motion. A finger resting between moves
+    // leaves it clear, so the idle time isn't counted as dropped frames.
+    private boolean frameHasMotion;
+
+    private GestureTrace.Recorder gestureRecorder;
+
+    // Software rendered layer of the image, only used without hardware acceleration, see drawImageFromCache()
+    private Bitmap imageCache;
+    private Canvas imageCacheCanvas;
+    private Drawable imageCacheDrawable;
+    private int imageCacheVersion;
+    private boolean imageCacheFailed;
 
     public CropImageView(Context context) {
         super(context);
@@ -32,14 +119,48 @@ public class CropImageView extends ImageViewTouchBase {
         super(context, attrs, defStyle);
     }
 
+    void setCropRectListener(CropRectListener listener) {
+        cropRectListener = listener;
+    }
+
+    /**
+     * Start collecting frame timings. Collection doesn't allocate, so it can stay enabled in production.
+     *
+     * @param listener Listener for the metrics, or null to stop collecting
+     */
+    @SuppressWarnings("deprecation")
+    public void setFrameMetricsListener(FrameMetricsListener listener) {
+        frameMetricsListener = listener;
+        frameStats.reset();
+        lastInteractiveDrawNanos = 0;
+        if (listener != null) {
+            WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+            float refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+            frameIntervalNanos = (long) (1000000000L / (refreshRate > 0 ? refreshRate : 60F));
+        }
+    }
+
+    /**
+     * Record touch events, e.g. to replay them in a performance test.
+     *
+     * @param recorder Recorder for the events, or null to stop recording
+     */
+    public void setGestureRecorder(GestureTrace.Recorder recorder) {
+        gestureRecorder = recorder;
+        if (recorder != null) {
+            recorder.setViewSize(getWidth(), getHeight());
+        }
+    }
+
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
+        if (gestureRecorder != null) {
+            gestureRecorder.setViewSize(right - left, bottom - top);
+        }
         if (bitmapDisplayed.getBitmap() != null) {
             for (HighlightView hv : highlightViews) {
-
-                hv.matrix.set(getUnrotatedMatrix());
-                hv.invalidate();
+                updateHighlightView(hv);
                 if (hv.hasFocus()) {
                     centerBasedOnHighlightView(hv);
                 }
@@ -50,48 +171,63 @@ public class CropImageView extends ImageViewTouchBase {
     @Override
     protected void zoomTo(float scale, float centerX, float centerY) {
         super.zoomTo(scale, centerX, centerY);
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.set(getUnrotatedMatrix());
-            hv.invalidate();
-        }
+        updateHighlightViews();
     }
 
     @Override
     protected void zoomIn() {
         super.zoomIn();
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.set(getUnrotatedMatrix());
-            hv.invalidate();
-        }
+        updateHighlightViews();
     }
 
     @Override
     protected void zoomOut() {
         super.zoomOut();
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.set(getUnrotatedMatrix());
-            hv.invalidate();
-        }
+        updateHighlightViews();
     }
 
     @Override
     protected void postTranslate(float deltaX, float deltaY) {
         super.postTranslate(deltaX, deltaY);
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.postTranslate(deltaX, deltaY);
-            hv.invalidate();
+        updateHighlightViews();
+    }
+
+    private void updateHighlightViews() {
+        for (int i = 0; i < highlightViews.size(); i++) {
+            updateHighlightView(highlightViews.get(i));
         }
     }
 
+    // Highlight views share our cached unrotated matrix rather than keeping a copy
+    private void updateHighlightView(HighlightView hv) {
+        hv.matrix = getUnrotatedMatrix();
+        hv.invalidate();
+    }
+
     @Override
     public boolean onTouchEvent(@NonNull MotionEvent event) {
-        CropImageActivity cropImageActivity = (CropImageActivity) context;
-        if (cropImageActivity.isSaving()) {
+        if (locked) {
             return false;
         }
+        if (gestureRecorder != null) {
+            gestureRecorder.record(event);
+        }
+
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            // A new gesture takes over from any zoom or fling still in progress. Done before
+            // the detectors, which start the zoom of a double tap on this event.
+            cancelZoomAnimation();
+            scroller.forceFinished(true);
+        } else if (event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN && motionHighlightView != null) {
+            // A second finger means a pinch, which takes over from dragging the crop rectangle
+            endCropRectDrag();
+        }
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
 
-        switch (event.getAction()) {
+        switch (event.getActionMasked()) {
         case MotionEvent.ACTION_DOWN:
+            hasPendingMotion = false;
             for (HighlightView hv : highlightViews) {
                 int edge = hv.getHit(event.getX(), event.getY());
                 if (edge != HighlightView.GROW_NONE) {
@@ -104,35 +240,245 @@ public class CropImageView extends ImageViewTouchBase {
                     motionHighlightView.setMode((edge == HighlightView.MOVE)
                             ? HighlightView.ModifyMode.Move
                             : HighlightView.ModifyMode.Grow);
+                    if (cropRectListener != null) {
+                        cropRectListener.onCropRectChanging();
+                    }
                     break;
                 }
             }
             break;
         case MotionEvent.ACTION_UP:
             if (motionHighlightView != null) {
-                centerBasedOnHighlightView(motionHighlightView);
-                motionHighlightView.setMode(HighlightView.ModifyMode.None);
+                HighlightView hv = motionHighlightView;
+                endCropRectDrag();
+                centerBasedOnHighlightView(hv);
             }
-            motionHighlightView = null;
             center();
             break;
+        case MotionEvent.ACTION_CANCEL:
+            // A parent took the gesture over, so motion it hasn't drawn yet is dropped
+            hasPendingMotion = false;
+            if (motionHighlightView != null) {
+                endCropRectDrag();
+            }
+            break;
         case MotionEvent.ACTION_MOVE:
             if (motionHighlightView != null && event.getPointerId(event.getActionIndex()) == validPointerId) {
-                motionHighlightView.handleMotion(motionEdge, event.getX()
-                        - lastX, event.getY() - lastY);
-                lastX = event.getX();
-                lastY = event.getY();
+                // Deltas between historical samples add up to the distance from the last
+                // position we applied to the latest one, so only that needs to be kept
+                pendingX = event.getX();
+                pendingY = event.getY();
+                if (!hasPendingMotion) {
+                    int history = event.getHistorySize();
+                    pendingSinceMillis = history > 0 ? event.getHistoricalEventTime(0) : event.getEventTime();
+                }
+                hasPendingMotion = true;
             }
+            if (frameMetricsListener != null) {
+                checkForIdleGap(event);
+            }
+            scheduleMotionFrame();
+            break;
+        }
+
+        return true;
+    }
+
+    /*
+     * If the finger rested for more than a frame before this move, the frames in between had
+     * nothing to draw, so the gap since the last interactive frame isn't counted as dropped.
+     */
+    private void checkForIdleGap(MotionEvent event) {
+        int history = event.getHistorySize();
+        long sampleNanos = (history > 0 ? event.getHistoricalEventTime(0) : event.getEventTime()) * 1000000L;
+        if (lastInteractiveDrawNanos != 0 && sampleNanos - lastInteractiveDrawNanos > frameIntervalNanos) {
+            lastInteractiveDrawNanos = 0;
+        }
+    }
+
+    private void endCropRectDrag() {
+        applyPendingMotion(System.nanoTime());
+        motionHighlightView.setMode(HighlightView.ModifyMode.None);
+        motionHighlightView = null;
+        if (cropRectListener != null) {
+            cropRectListener.onCropRectSettled();
+        }
+    }
+
+    @Override
+    public void invalidate() {
+        // Called from the View constructor, before our fields are set
+        if (perfCounters != null) {
+            perfCounters.invalidations++;
+        }
+        super.invalidate();
+    }
+
+    @Override
+    public void invalidate(@NonNull Rect dirty) {
+        if (perfCounters != null) {
+            perfCounters.invalidations++;
+        }
+        super.invalidate(dirty);
+    }
+
+    private void scheduleMotionFrame() {
+        if (!motionFrameScheduled) {
+            motionFrameScheduled = true;
+            frameScheduler.postFrameCallback(motionFrame);
+        }
+    }
+
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            // Pinching doesn't take over from a crop rectangle that is being dragged
+            return motionHighlightView == null && bitmapDisplayed.getBitmap() != null;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            pendingScale *= detector.getScaleFactor();
+            pendingFocusX = detector.getFocusX();
+            pendingFocusY = detector.getFocusY();
+            scheduleMotionFrame();
+            return true;
+        }
+    }
+
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            if (motionHighlightView != null || bitmapDisplayed.getBitmap() == null) {
+                return false;
+            }
+            float scale = getScale() > 1F ? 1F : Math.min(maxZoom, DOUBLE_TAP_SCALE);
+            zoomTo(scale, e.getX(), e.getY(), DOUBLE_TAP_DURATION_MS);
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            if (motionHighlightView != null || scaleDetector.isInProgress() || getScale() <= 1F) {
+                return false;
+            }
+            pendingPanX -= distanceX;
+            pendingPanY -= distanceY;
+            scheduleMotionFrame();
+            return true;
+        }
+
+        @Override
+        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+            if (motionHighlightView != null || scaleDetector.isInProgress() || getScale() <= 1F) {
+                return false;
+            }
+            // Translation that keeps the image covering the view on each axis
+            Bitmap bitmap = bitmapDisplayed.getBitmap();
+            imageBounds.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            getImageViewMatrix().mapRect(imageBounds);
+            int minX = (int) Math.min(0, getWidth() - imageBounds.right);
+            int maxX = (int) Math.max(0, -imageBounds.left);
+            int minY = (int) Math.min(0, getHeight() - imageBounds.bottom);
+            int maxY = (int) Math.max(0, -imageBounds.top);
+
+            flingX = 0;
+            flingY = 0;
+            scroller.fling(0, 0, (int) velocityX, (int) velocityY, minX, maxX, minY, maxY);
+            scheduleMotionFrame();
+            return true;
+        }
+    }
+
+    /**
+     * Time from the oldest touch sample waiting for a frame to the start of the frame
+     * that applies it. Rendering and display latency come on top of this.
+     */
+    public LatencyStats getTouchLatencyStats() {
+        return touchLatency;
+    }
+
+    /*
+     * Touch panels can report several samples per display frame. Moves are folded together
+     * and applied once at the start of the next frame, so the crop rect is laid out and
+     * invalidated once per frame rather than once per sample.
+     */
+    private final FrameScheduler.FrameCallback motionFrame = new FrameScheduler.FrameCallback() {
+        @Override
+        void doFrame(long frameTimeNanos) {
+            motionFrameScheduled = false;
+            applyPendingMotion(frameTimeNanos);
+            applyPendingZoomAndPan();
 
             // If we're not zoomed then there's no point in even allowing the user to move the image around.
             // This call to center puts it back to the normalized location.
             if (getScale() == 1F) {
                 center();
             }
-            break;
         }
+    };
+
+    /*
+     * Scale, focus and pan from all the samples since the last frame go into the supp matrix
+     * together with the re-centering, so the image matrix and crop rectangles are updated
+     * once per frame.
+     */
+    private void applyPendingZoomAndPan() {
+        if (bitmapDisplayed.getBitmap() == null) {
+            pendingScale = 1F;
+            pendingPanX = pendingPanY = 0;
+            scroller.forceFinished(true);
+            return;
+        }
+        boolean changed = false;
+        if (pendingScale != 1F) {
+            float scale = Math.max(1F, Math.min(maxZoom, getScale() * pendingScale));
+            float deltaScale = scale / getScale();
+            pendingScale = 1F;
+            if (deltaScale != 1F) {
+                suppMatrix.postScale(deltaScale, deltaScale, pendingFocusX, pendingFocusY);
+                changed = true;
+            }
+        }
+        if (!scroller.isFinished() && scroller.computeScrollOffset()) {
+            pendingPanX += scroller.getCurrX() - flingX;
+            pendingPanY += scroller.getCurrY() - flingY;
+            flingX = scroller.getCurrX();
+            flingY = scroller.getCurrY();
+            scheduleMotionFrame();
+        }
+        if (pendingPanX != 0 || pendingPanY != 0) {
+            suppMatrix.postTranslate(pendingPanX, pendingPanY);
+            pendingPanX = pendingPanY = 0;
+            changed = true;
+        }
+        if (changed) {
+            frameHasMotion = true;
+            suppMatrixChanged();
+            if (getCenterDelta(centerDelta)) {
+                suppMatrix.postTranslate(centerDelta.x, centerDelta.y);
+                suppMatrixChanged();
+            }
+            setImageMatrix(getImageViewMatrix());
+            updateHighlightViews();
+        }
+    }
 
-        return true;
+    private void applyPendingMotion(long frameTimeNanos) {
+        if (!hasPendingMotion) {
+            return;
+        }
+        hasPendingMotion = false;
+        if (motionHighlightView != null) {
+            motionHighlightView.handleMotion(motionEdge, pendingX - lastX, pendingY - lastY);
+            frameHasMotion = true;
+            lastX = pendingX;
+            lastY = pendingY;
+            // Event times use the same monotonic clock as frame times
+            touchLatency.record(frameTimeNanos - pendingSinceMillis * 1000000L);
+        }
     }
 
     // Pan the displayed image to make sure the cropping rectangle is visible.
@@ -182,10 +528,105 @@ public class CropImageView extends ImageViewTouchBase {
 
     @Override
     protected void onDraw(@NonNull Canvas canvas) {
-        super.onDraw(canvas);
-        for (HighlightView highlightView : highlightViews) {
-            highlightView.draw(canvas);
+        // Only timed while someone is listening
+        boolean timed = frameMetricsListener != null;
+        long start = timed ? System.nanoTime() : 0;
+        CropTrace.beginFrameSection("CropImageView.drawImage");
+        if (!drawImageFromCache(canvas)) {
+            super.onDraw(canvas);
+        }
+        CropTrace.endFrameSection();
+        long imageEnd = timed ? System.nanoTime() : 0;
+        CropTrace.beginFrameSection("CropImageView.drawOverlay");
+        for (int i = 0; i < highlightViews.size(); i++) {
+            highlightViews.get(i).draw(canvas);
+        }
+        CropTrace.endFrameSection();
+        if (timed) {
+            recordFrame(start, imageEnd - start, System.nanoTime() - imageEnd);
+        }
+    }
+
+    private void recordFrame(long startNanos, long imageNanos, long overlayNanos) {
+        frameStats.recordFrame(imageNanos, overlayNanos);
+
+        // While there's motion or animation to apply we expect to draw every frame, so a longer
+        // gap between two such frames means frames were missed
+        int dropped = 0;
+        boolean interacting = frameHasMotion || isZoomAnimating() || !scroller.isFinished();
+        frameHasMotion = false;
+        if (interacting) {
+            if (lastInteractiveDrawNanos != 0) {
+                long interval = startNanos - lastInteractiveDrawNanos;
+                dropped = (int) Math.max(0, (interval + frameIntervalNanos / 2) / frameIntervalNanos - 1);
+            }
+            frameStats.recordInteractiveFrame(dropped);
+            lastInteractiveDrawNanos = startNanos;
+        } else {
+            lastInteractiveDrawNanos = 0;
+        }
+        frameMetricsListener.onFrame(imageNanos, overlayNanos, dropped);
+    }
+
+    /*
+     * Without hardware acceleration every invalidate would redraw the whole scaled bitmap,
+     * even while only the crop rect is being dragged. Instead we render the image into a
+     * cached layer, which is only refreshed when the image matrix or drawable change.
+     * Hardware accelerated canvases already keep the bitmap as a texture and redraw it
+     * cheaply, so they draw directly and don't keep a layer around.
+     */
+    @SuppressLint("NewApi")
+    private boolean drawImageFromCache(Canvas canvas) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && canvas.isHardwareAccelerated()) {
+            // In case we were drawn in software before, e.g. into a bitmap
+            releaseImageCache();
+            return false;
+        }
+        if (imageCacheFailed || getDrawable() == null || getWidth() <= 0 || getHeight() <= 0) {
+            return false;
+        }
+        if (imageCache == null || imageCache.getWidth() != getWidth() || imageCache.getHeight() != getHeight()) {
+            releaseImageCache();
+            try {
+                imageCache = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                // Not worth failing over, just draw directly
+                imageCacheFailed = true;
+                return false;
+            }
+            imageCacheCanvas = new Canvas(imageCache);
+        }
+        if (imageCacheDrawable != getDrawable() || imageCacheVersion != getMatrixVersion()) {
+            imageCache.eraseColor(Color.TRANSPARENT);
+            super.onDraw(imageCacheCanvas);
+            imageCacheDrawable = getDrawable();
+            imageCacheVersion = getMatrixVersion();
+        }
+        canvas.drawBitmap(imageCache, 0, 0, null);
+        return true;
+    }
+
+    private void releaseImageCache() {
+        if (imageCache != null) {
+            imageCache.recycle();
+            imageCache = null;
+            imageCacheCanvas = null;
+            imageCacheDrawable = null;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (frameMetricsListener != null) {
+            frameMetricsListener.onSessionEnd(frameStats);
+            frameStats.reset();
+            lastInteractiveDrawNanos = 0;
         }
+        frameScheduler.removeFrameCallback(motionFrame);
+        motionFrameScheduled = false;
+        scroller.forceFinished(true);
+        releaseImageCache();
     }
 
     public void add(HighlightView hv) {
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+
+/**
+ * Timings and memory use of one crop, for finding slow devices and content providers.
+ * Safe to read while the crop's background threads are still updating it.
+ * <p>
+ * Stages that didn't run, e.g. the region decode when the whole image is copied, report zero.
+ */
+public final class CropMetrics {
+
+    public enum Stage {
+        /** Reading the image dimensions to choose a sample size */
+        BOUNDS_PROBE,
+        /** Decoding the preview shown on the crop screen */
+        PREVIEW_DECODE,
+        /** Reading the Exif orientation of the source */
+        EXIF_READ,
+        /** Decoding the crop area from the source, or cutting it from the preview */
+        REGION_DECODE,
+        /** Scaling the crop to the maximum size */
+        SCALE,
+        /** Encoding the output, or copying the source bytes when no re-encode is needed */
+        COMPRESS,
+        /** Copying the Exif orientation to the output */
+        EXIF_WRITE,
+        /** Applying the Exif rotation to the pixels, for outputs that can't carry the Exif tag */
+        ROTATE
+    }
+
+    /**
+     * Receives the metrics when the crop screen finishes, whether the crop succeeded,
+     * failed or was cancelled. Called on the main thread.
+     */
+    public interface Listener {
+        void onCropMetrics(CropMetrics metrics);
+    }
+
+    private static final String KEY_STAGE_NANOS = "stage_nanos";
+    private static final String KEY_STAGE_BYTES = "stage_bytes";
+    private static final String KEY_SAMPLE_SIZE = "sample_size";
+    private static final String KEY_PEAK_BITMAP_BYTES = "peak_bitmap_bytes";
+    private static final String KEY_SOURCE_BYTES = "source_bytes";
+    private static final String KEY_OUTPUT_BYTES = "output_bytes";
+
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final long[] stageBytes = new long[Stage.values().length];
+    private int sampleSize;
+    private long liveBitmapBytes;
+    private long peakBitmapBytes;
+    private long sourceBytes = -1;
+    private long outputBytes = -1;
+
+    CropMetrics() {
+    }
+
+    /**
+     * @return Wall time spent in the stage, in milliseconds
+     */
+    public synchronized float getStageMillis(Stage stage) {
+        return stageNanos[stage.ordinal()] / 1000000f;
+    }
+
+    /**
+     * @return Bytes produced by the stage: decoded pixels for decode and scale, encoded bytes for compress
+     */
+    public synchronized long getStageBytes(Stage stage) {
+        return stageBytes[stage.ordinal()];
+    }
+
+    /**
+     * @return Sample size the preview was decoded at, after any retries for memory
+     */
+    public synchronized int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @return Largest number of bitmap bytes the crop held at the same time
+     */
+    public synchronized long getPeakBitmapBytes() {
+        return peakBitmapBytes;
+    }
+
+    /**
+     * @return Size of the source, or -1 if the content provider doesn't report it
+     */
+    public synchronized long getSourceFileBytes() {
+        return sourceBytes;
+    }
+
+    /**
+     * @return Size of the output, or -1 if nothing was written
+     */
+    public synchronized long getOutputFileBytes() {
+        return outputBytes;
+    }
+
+    synchronized void endStage(Stage stage, long startNanos, long bytes) {
+        stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+        stageBytes[stage.ordinal()] += bytes;
+    }
+
+    synchronized void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    synchronized void setSourceBytes(long sourceBytes) {
+        this.sourceBytes = sourceBytes;
+    }
+
+    synchronized void setOutputBytes(long outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    synchronized void allocated(Bitmap bitmap) {
+        if (bitmap != null) {
+            liveBitmapBytes += sizeOf(bitmap);
+            peakBitmapBytes = Math.max(peakBitmapBytes, liveBitmapBytes);
+        }
+    }
+
+    synchronized void released(Bitmap bitmap) {
+        if (bitmap != null) {
+            liveBitmapBytes -= sizeOf(bitmap);
+        }
+    }
+
+    // Adds the stages of work done elsewhere, e.g. a background decode, on top of what we hold now
+    void merge(CropMetrics other) {
+        // Copied first, so we never hold both locks
+        long[] otherNanos;
+        long[] otherBytes;
+        long otherPeak;
+        long otherLive;
+        synchronized (other) {
+            otherNanos = other.stageNanos.clone();
+            otherBytes = other.stageBytes.clone();
+            otherPeak = other.peakBitmapBytes;
+            otherLive = other.liveBitmapBytes;
+        }
+        synchronized (this) {
+            for (int i = 0; i < stageNanos.length; i++) {
+                stageNanos[i] += otherNanos[i];
+                stageBytes[i] += otherBytes[i];
+            }
+            peakBitmapBytes = Math.max(peakBitmapBytes, liveBitmapBytes + otherPeak);
+            liveBitmapBytes += otherLive;
+        }
+    }
+
+    static long sizeOf(Bitmap bitmap) {
+        // Bitmap.getByteCount() needs API 12
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_STAGE_NANOS, stageNanos.clone());
+        bundle.putLongArray(KEY_STAGE_BYTES, stageBytes.clone());
+        bundle.putInt(KEY_SAMPLE_SIZE, sampleSize);
+        bundle.putLong(KEY_PEAK_BITMAP_BYTES, peakBitmapBytes);
+        bundle.putLong(KEY_SOURCE_BYTES, sourceBytes);
+        bundle.putLong(KEY_OUTPUT_BYTES, outputBytes);
+        return bundle;
+    }
+
+    static CropMetrics fromBundle(Bundle bundle) {
+        CropMetrics metrics = new CropMetrics();
+        copy(bundle.getLongArray(KEY_STAGE_NANOS), metrics.stageNanos);
+        copy(bundle.getLongArray(KEY_STAGE_BYTES), metrics.stageBytes);
+        metrics.sampleSize = bundle.getInt(KEY_SAMPLE_SIZE);
+        metrics.peakBitmapBytes = bundle.getLong(KEY_PEAK_BITMAP_BYTES);
+        metrics.sourceBytes = bundle.getLong(KEY_SOURCE_BYTES, -1);
+        metrics.outputBytes = bundle.getLong(KEY_OUTPUT_BYTES, -1);
+        return metrics;
+    }
+
+    private static void copy(long[] from, long[] to) {
+        if (from != null) {
+            System.arraycopy(from, 0, to, 0, Math.min(from.length, to.length));
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import java.util.concurrent.CancellationException;
+
+/*
+ * Progress and cooperative cancellation for a crop or save running in the background.
+ * The work is split into phases that each cover part of the 0..1 range, and reports
+ * between strips, rows and chunks. Once cancelled, the next checkpoint throws a
+ * CancellationException, so the work unwinds and frees its bitmaps on the way out.
+ */
+final class CropProgress {
+
+    /*
+     * Receives the fraction done, on the thread doing the work
+     */
+    interface Listener {
+        void onProgress(float fraction);
+    }
+
+    // Smallest change worth reporting
+    private static final float STEP = 0.01f;
+
+    private final Listener listener;
+    private volatile boolean cancelled;
+
+    private float phaseStart;
+    private float phaseEnd = 1F;
+    private float reported = -1F;
+
+    CropProgress(Listener listener) {
+        this.listener = listener;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void checkpoint() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    // Following updates cover the part of the whole between start and end
+    void phase(float start, float end) {
+        checkpoint();
+        phaseStart = start;
+        phaseEnd = end;
+        report(start);
+    }
+
+    void update(float fraction) {
+        checkpoint();
+        report(phaseStart + (phaseEnd - phaseStart) * Math.max(0F, Math.min(1F, fraction)));
+    }
+
+    private void report(float progress) {
+        if (listener != null && (progress - reported >= STEP || (progress >= 1F && reported < 1F))) {
+            reported = progress;
+            listener.onProgress(progress);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.net.Uri;
+
+import com.soundcloud.android.crop.core.CropRect;
+
+/*
+ * State of the crop screen that is expensive to rebuild: the decoded preview and
+ * what we learned about the source while loading it. Retained across configuration
+ * changes, so that rotating the device doesn't read and decode the source again.
+ */
+class CropSession {
+
+    final Uri sourceUri;
+    final RotateBitmap preview;
+    final int sampleSize;
+    final int sourceWidth;
+    final int sourceHeight;
+    final String sourceMimeType;
+    final CropMetrics metrics;
+
+    // In preview coordinates, null until the crop area has been set up
+    CropRect cropRect;
+    // Zoom and pan of the image, null to fit it to the view
+    float[] suppMatrix;
+    // Cached copy of the preview, if one was written or restored from
+    CropSnapshot snapshot;
+    // The preview is being written in the background, and goes in snapshot when done
+    boolean writingSnapshot;
+    boolean previewFromSnapshot;
+
+    CropSession(Uri sourceUri, RotateBitmap preview, int sampleSize, int sourceWidth, int sourceHeight,
+                String sourceMimeType, CropMetrics metrics) {
+        this.sourceUri = sourceUri;
+        this.preview = preview;
+        this.sampleSize = sampleSize;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.sourceMimeType = sourceMimeType;
+        this.metrics = metrics;
+    }
+
+    boolean isFor(Uri uri) {
+        return sourceUri.equals(uri) && preview.getBitmap() != null && !preview.getBitmap().isRecycled();
+    }
+
+}
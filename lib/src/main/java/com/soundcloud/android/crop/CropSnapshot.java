@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * State of the crop screen that survives the process being killed. The preview is
+ * downsampled and written to the cache dir, so coming back shows the previous crop
+ * straight away instead of waiting for the source to be read and decoded. The source
+ * fingerprint is checked afterwards, in case the image changed while we were gone.
+ */
+class CropSnapshot {
+
+    // Longest side of the cached preview
+    static final int PREVIEW_SIZE = 1024;
+
+    private static final String FILE_PREFIX = "crop-snapshot-";
+
+    private static final String KEY_SOURCE_URI = "source_uri";
+    private static final String KEY_PREVIEW = "preview";
+    private static final String KEY_SAMPLE_SIZE = "sample_size";
+    private static final String KEY_EXIF_ROTATION = "exif_rotation";
+    private static final String KEY_SOURCE_BYTES = "source_bytes";
+    private static final String KEY_SOURCE_WIDTH = "source_width";
+    private static final String KEY_SOURCE_HEIGHT = "source_height";
+    private static final String KEY_SOURCE_MIME_TYPE = "source_mime_type";
+    private static final String KEY_CROP_RECT = "crop_rect";
+    private static final String KEY_SUPP_MATRIX = "supp_matrix";
+
+    final Uri sourceUri;
+    final File preview;
+    // Of the cached preview, which is smaller than the one decoded from the source
+    final int sampleSize;
+    final int exifRotation;
+    final long sourceBytes;
+    final int sourceWidth;
+    final int sourceHeight;
+    final String sourceMimeType;
+
+    // Relative to the preview size (left, top, right, bottom), so they apply at any sample size
+    float[] cropRect;
+    // Zoom and pan of the image view
+    float[] suppMatrix;
+    // Set once the source is known to match the fingerprint
+    boolean validated;
+
+    private CropSnapshot(Uri sourceUri, File preview, int sampleSize, int exifRotation, long sourceBytes,
+                         int sourceWidth, int sourceHeight, String sourceMimeType) {
+        this.sourceUri = sourceUri;
+        this.preview = preview;
+        this.sampleSize = sampleSize;
+        this.exifRotation = exifRotation;
+        this.sourceBytes = sourceBytes;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.sourceMimeType = sourceMimeType;
+    }
+
+    /*
+     * Writes a copy of the preview, halving it until it fits PREVIEW_SIZE so the sample
+     * size stays a power of two. Must not be called with a recycled bitmap. Blocking, so
+     * call it off the main thread.
+     */
+    static CropSnapshot create(Context context, Uri sourceUri, RotateBitmap preview, int sampleSize,
+                               long sourceBytes, int sourceWidth, int sourceHeight, String sourceMimeType)
+            throws IOException {
+        Bitmap bitmap = preview.getBitmap();
+        int shift = 0;
+        while (Math.max(bitmap.getWidth(), bitmap.getHeight()) >> shift > PREVIEW_SIZE) {
+            shift++;
+        }
+        Bitmap scaled = shift == 0 ? bitmap : Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, bitmap.getWidth() >> shift), Math.max(1, bitmap.getHeight() >> shift), true);
+
+        // Unique, as a crop screen for the same source may still be writing its own
+        File file = File.createTempFile(FILE_PREFIX, null, context.getCacheDir());
+        OutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(file);
+            // Keep transparency for PNG sources, nothing else needs it
+            boolean png = "image/png".equals(sourceMimeType);
+            if (!scaled.compress(png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 85, out)) {
+                throw new IOException("Cannot write snapshot preview to " + file);
+            }
+            written = true;
+        } finally {
+            CropUtil.closeSilently(out);
+            if (scaled != bitmap) {
+                scaled.recycle();
+            }
+            if (!written && !file.delete()) {
+                Log.e("Cannot delete snapshot preview " + file);
+            }
+        }
+        return new CropSnapshot(sourceUri, file, sampleSize << shift, preview.getRotation(),
+                sourceBytes, sourceWidth, sourceHeight, sourceMimeType);
+    }
+
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(KEY_SOURCE_URI, sourceUri);
+        bundle.putString(KEY_PREVIEW, preview.getAbsolutePath());
+        bundle.putInt(KEY_SAMPLE_SIZE, sampleSize);
+        bundle.putInt(KEY_EXIF_ROTATION, exifRotation);
+        bundle.putLong(KEY_SOURCE_BYTES, sourceBytes);
+        bundle.putInt(KEY_SOURCE_WIDTH, sourceWidth);
+        bundle.putInt(KEY_SOURCE_HEIGHT, sourceHeight);
+        bundle.putString(KEY_SOURCE_MIME_TYPE, sourceMimeType);
+        bundle.putFloatArray(KEY_CROP_RECT, cropRect);
+        bundle.putFloatArray(KEY_SUPP_MATRIX, suppMatrix);
+        return bundle;
+    }
+
+    static CropSnapshot fromBundle(Bundle bundle) {
+        Uri sourceUri = bundle.getParcelable(KEY_SOURCE_URI);
+        String preview = bundle.getString(KEY_PREVIEW);
+        if (sourceUri == null || preview == null) {
+            return null;
+        }
+        CropSnapshot snapshot = new CropSnapshot(sourceUri, new File(preview),
+                bundle.getInt(KEY_SAMPLE_SIZE, 1),
+                bundle.getInt(KEY_EXIF_ROTATION),
+                bundle.getLong(KEY_SOURCE_BYTES, -1),
+                bundle.getInt(KEY_SOURCE_WIDTH),
+                bundle.getInt(KEY_SOURCE_HEIGHT),
+                bundle.getString(KEY_SOURCE_MIME_TYPE));
+        snapshot.cropRect = bundle.getFloatArray(KEY_CROP_RECT);
+        snapshot.suppMatrix = bundle.getFloatArray(KEY_SUPP_MATRIX);
+        return snapshot;
+    }
+
+    // Returns null if the cache was cleared while we were gone
+    Bitmap readPreview() {
+        if (!preview.exists()) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeFile(preview.getAbsolutePath());
+        } catch (OutOfMemoryError e) {
+            Log.e("OOM reading snapshot preview", e);
+            return null;
+        }
+    }
+
+    /*
+     * Checks the source against the fingerprint we took when the snapshot was written.
+     * Reads the image header and size, so call it off the main thread.
+     */
+    boolean matchesSource(ContentResolver resolver, long currentSourceBytes) {
+        if (currentSourceBytes != sourceBytes) {
+            return false;
+        }
+        InputStream is = null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            is = resolver.openInputStream(sourceUri);
+            BitmapFactory.decodeStream(is, null, options);
+        } catch (IOException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+        return options.outWidth == sourceWidth && options.outHeight == sourceHeight
+                && (sourceMimeType == null ? options.outMimeType == null : sourceMimeType.equals(options.outMimeType));
+    }
+
+    /*
+     * Deletes the previews of crop screens that were killed and never restored, or that
+     * crashed. Called when a crop screen starts afresh, so nothing of ours needs them. A crop
+     * screen in another task that loses its file decodes the source again when restored.
+     * Blocking, so call it off the main thread.
+     */
+    static void deleteStale(Context context) {
+        File[] files = context.getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+                Log.e("Cannot delete snapshot preview " + file);
+            }
+        }
+    }
+
+    void delete() {
+        if (preview.exists() && !preview.delete()) {
+            Log.e("Cannot delete snapshot preview " + preview);
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Spans of the crop pipeline, for finding out why a particular crop was slow.
+ * <p>
+ * Spans show up as sections in systrace on API 18+, and the most recent ones are kept in
+ * memory on every version, so they can be attached to bug reports with {@link #writeChromeTrace(Writer)}.
+ * Open the output in chrome://tracing or Perfetto.
+ */
+public final class CropTrace {
+
+    // Must be a power of two
+    private static final int CAPACITY = 1024;
+
+    /*
+     * Lock-free ring buffer. Writers claim an index, then guard the slot with a sequence
+     * number that is odd while writing and even once the event is complete. Readers skip
+     * slots whose sequence doesn't match the index they expect, or changes while reading.
+     *
+     * The slot data is held in atomic arrays too. With plain arrays the data writes could
+     * become visible before the odd sequence, and the data reads could move past the second
+     * sequence read, so a reader could accept a half-written event.
+     */
+    private static final AtomicLong nextIndex = new AtomicLong();
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicReferenceArray<String> names = new AtomicReferenceArray<String>(CAPACITY);
+    private static final AtomicLongArray startNanos = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray durationNanos = new AtomicLongArray(CAPACITY);
+    private static final AtomicIntegerArray threadIds = new AtomicIntegerArray(CAPACITY);
+
+    private CropTrace() {
+    }
+
+    /*
+     * Starts a span on the current thread. Must be paired with end() on the same thread,
+     * in a finally block. Names should be constants, so tracing doesn't allocate.
+     */
+    static long begin(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginSection(name);
+        }
+        return System.nanoTime();
+    }
+
+    static void end(String name, long beginNanos) {
+        long duration = System.nanoTime() - beginNanos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            endSection();
+        }
+        record(name, beginNanos, duration, Process.myTid());
+    }
+
+    /*
+     * Systrace-only section for work done on every frame, like drawing. At 60fps these would
+     * fill the ring buffer within seconds and push out the load, decode and save spans.
+     */
+    static void beginFrameSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginSection(name);
+        }
+    }
+
+    static void endFrameSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            endSection();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        Trace.endSection();
+    }
+
+    static void record(String name, long start, long duration, int threadId) {
+        long index = nextIndex.getAndIncrement();
+        int slot = (int) (index & (CAPACITY - 1));
+        sequences.set(slot, index * 2 + 1);
+        names.set(slot, name);
+        startNanos.set(slot, start);
+        durationNanos.set(slot, duration);
+        threadIds.set(slot, threadId);
+        sequences.set(slot, index * 2 + 2);
+    }
+
+    /**
+     * Write the recorded spans, oldest first, in the Chrome trace event format.
+     * Safe to call while spans are being recorded; those are left out.
+     *
+     * @param writer Writer for the JSON
+     */
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        int pid = Process.myPid();
+        long end = nextIndex.get();
+        boolean first = true;
+        writer.write("{\"traceEvents\":[");
+        for (long index = Math.max(0, end - CAPACITY); index < end; index++) {
+            int slot = (int) (index & (CAPACITY - 1));
+            long sequence = index * 2 + 2;
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            String name = names.get(slot);
+            long start = startNanos.get(slot);
+            long duration = durationNanos.get(slot);
+            int tid = threadIds.get(slot);
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"");
+            writeEscaped(writer, name);
+            writer.write("\",\"cat\":\"crop\",\"ph\":\"X\",\"ts\":");
+            writer.write(Long.toString(start / 1000));
+            writer.write(",\"dur\":");
+            writer.write(Long.toString(duration / 1000));
+            writer.write(",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(tid));
+            writer.write('}');
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    /**
+     * @return The recorded spans in the Chrome trace event format
+     * @see #writeChromeTrace(Writer)
+     */
+    public static String toChromeTrace() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeChromeTrace(writer);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    private static void writeEscaped(Writer writer, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+
+}
@@ -16,7 +16,6 @@
 
 package com.soundcloud.android.crop;
 
-import android.app.ProgressDialog;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
@@ -25,6 +24,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
@@ -34,6 +34,11 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
 /*
  * Modified from original in AOSP.
@@ -43,6 +48,9 @@ class CropUtil {
     private static final String SCHEME_FILE = "file";
     private static final String SCHEME_CONTENT = "content";
 
+    // Bytes transferred between progress updates when copying files
+    private static final long COPY_CHUNK = 1 << 20;
+
     public static void closeSilently(@Nullable Closeable c) {
         if (c == null) return;
         try {
@@ -122,6 +130,187 @@ class CropUtil {
         return null;
     }
 
+    /*
+     * Copies the bytes of one image to another. When both ends are files the copy
+     * happens in the kernel through channel transfer rather than via a Java buffer,
+     * unless the bytes need to go through a digest. Reports progress and checks for
+     * cancellation between chunks.
+     *
+     * Opening the destination truncates it, so an in-place crop is left alone, and files
+     * are written next to the destination and renamed into place once complete.
+     */
+    public static void copy(ContentResolver resolver, Uri source, Uri destination,
+                            @Nullable MessageDigest digest, CropProgress progress, long size) throws IOException {
+        if (isSameImage(source, destination)) {
+            // The bytes are already there, they only need hashing
+            if (digest != null) {
+                InputStream input = null;
+                try {
+                    input = resolver.openInputStream(source);
+                    if (input == null) {
+                        throw new IOException("Cannot open " + source);
+                    }
+                    copy(input, new DigestOutputStream(new DiscardingOutputStream(), digest), progress, size);
+                } finally {
+                    closeSilently(input);
+                }
+            }
+            return;
+        }
+
+        if (SCHEME_FILE.equals(destination.getScheme())) {
+            File target = new File(destination.getPath());
+            File temp = createTempSibling(target);
+            boolean done = false;
+            try {
+                copyToFile(resolver, source, temp, digest, progress, size);
+                moveIntoPlace(temp, target);
+                done = true;
+            } finally {
+                if (!done) {
+                    temp.delete();
+                }
+            }
+            return;
+        }
+
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = resolver.openInputStream(source);
+            output = resolver.openOutputStream(destination);
+            if (input == null || output == null) {
+                throw new IOException("Cannot open " + (input == null ? source : destination));
+            }
+            copy(input, digest != null ? new DigestOutputStream(output, digest) : output, progress, size);
+        } finally {
+            closeSilently(input);
+            closeSilently(output);
+        }
+    }
+
+    private static void copyToFile(ContentResolver resolver, Uri source, File destination,
+                                   @Nullable MessageDigest digest, CropProgress progress, long size) throws IOException {
+        if (digest == null && SCHEME_FILE.equals(source.getScheme())) {
+            FileChannel input = null;
+            FileChannel output = null;
+            try {
+                input = new FileInputStream(source.getPath()).getChannel();
+                output = new FileOutputStream(destination).getChannel();
+                size = input.size();
+                long position = 0;
+                while (position < size) {
+                    progress.update((float) position / size);
+                    position += input.transferTo(position, Math.min(COPY_CHUNK, size - position), output);
+                }
+            } finally {
+                closeSilently(input);
+                closeSilently(output);
+            }
+            return;
+        }
+
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = resolver.openInputStream(source);
+            if (input == null) {
+                throw new IOException("Cannot open " + source);
+            }
+            output = new FileOutputStream(destination);
+            copy(input, digest != null ? new DigestOutputStream(output, digest) : output, progress, size);
+        } finally {
+            closeSilently(input);
+            closeSilently(output);
+        }
+    }
+
+    // Whether writing to the destination would overwrite the source
+    static boolean isSameImage(Uri source, Uri destination) {
+        if (source.equals(destination)) {
+            return true;
+        }
+        if (!SCHEME_FILE.equals(source.getScheme()) || !SCHEME_FILE.equals(destination.getScheme())) {
+            return false;
+        }
+        try {
+            return new File(source.getPath()).getCanonicalFile().equals(new File(destination.getPath()).getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // A temporary file on the same file system as the target, so it can be renamed over it
+    static File createTempSibling(File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        return File.createTempFile("crop", ".tmp", dir);
+    }
+
+    static void moveIntoPlace(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            throw new IOException("Cannot move " + temp + " to " + target);
+        }
+    }
+
+    // Produces the bytes for write(), e.g. by encoding a bitmap into the stream
+    interface OutputWriter {
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    /*
+     * Writes an image to the destination. Files are written next to it and renamed over it
+     * once complete, so a failed or cancelled write leaves whatever was there before alone.
+     * Content Uris belong to the caller, and are written directly. Throws whatever the
+     * writer throws, once the destination has been closed.
+     */
+    static void write(ContentResolver resolver, Uri destination, OutputWriter writer) throws IOException {
+        File target = SCHEME_FILE.equals(destination.getScheme()) ? new File(destination.getPath()) : null;
+        File temp = target != null ? createTempSibling(target) : null;
+        OutputStream output = null;
+        boolean done = false;
+        try {
+            output = temp != null ? new FileOutputStream(temp) : resolver.openOutputStream(destination);
+            if (output == null) {
+                throw new IOException("Cannot open " + destination);
+            }
+            writer.writeTo(output);
+            output.close();
+            if (temp != null) {
+                moveIntoPlace(temp, target);
+            }
+            done = true;
+        } finally {
+            closeSilently(output);
+            if (temp != null && !done) {
+                temp.delete();
+            }
+        }
+    }
+
+    public static void copy(InputStream input, OutputStream output, CropProgress progress, long size)
+            throws IOException {
+        int read;
+        long copied = 0;
+        byte[] bytes = new byte[8192];
+        while ((read = input.read(bytes)) != -1) {
+            progress.update(size > 0 ? (float) copied / size : 0F);
+            output.write(bytes, 0, read);
+            copied += read;
+        }
+    }
+
+    // Sink for bytes that only go through a digest
+    private static class DiscardingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+        }
+    }
+
     private static String getTempFilename(Context context) throws IOException {
         File outputDir = context.getCacheDir();
         File outputFile = File.createTempFile("image", "tmp", outputDir);
@@ -157,62 +346,56 @@ class CropUtil {
         return null;
     }
 
-    public static void startBackgroundJob(MonitoredActivity activity,
-            String title, String message, Runnable job, Handler handler) {
-        // Make the progress dialog uncancelable, so that we can guarantee
-        // the thread will be done before the activity getting destroyed
-        ProgressDialog dialog = ProgressDialog.show(
-                activity, title, message, true, false);
-        new Thread(new BackgroundJob(activity, job, dialog, handler)).start();
+    /*
+     * Runs a job in the background until it's done or the activity is destroyed, which
+     * cancels its progress so the job stops at its next checkpoint.
+     */
+    public static void startBackgroundJob(MonitoredActivity activity, Runnable job,
+            CropProgress progress, Handler handler) {
+        new Thread(new BackgroundJob(activity, job, progress, handler)).start();
     }
 
     private static class BackgroundJob extends MonitoredActivity.LifeCycleAdapter implements Runnable {
 
         private final MonitoredActivity activity;
-        private final ProgressDialog dialog;
         private final Runnable job;
+        private final CropProgress progress;
         private final Handler handler;
         private final Runnable cleanupRunner = new Runnable() {
             public void run() {
                 activity.removeLifeCycleListener(BackgroundJob.this);
-                if (dialog.getWindow() != null) dialog.dismiss();
             }
         };
 
         public BackgroundJob(MonitoredActivity activity, Runnable job,
-                             ProgressDialog dialog, Handler handler) {
+                             CropProgress progress, Handler handler) {
             this.activity = activity;
-            this.dialog = dialog;
             this.job = job;
+            this.progress = progress;
             this.activity.addLifeCycleListener(this);
             this.handler = handler;
         }
 
         public void run() {
+            long trace = CropTrace.begin("CropUtil.backgroundJob");
             try {
                 job.run();
             } finally {
+                CropTrace.end("CropUtil.backgroundJob", trace);
                 handler.post(cleanupRunner);
             }
         }
 
         @Override
         public void onActivityDestroyed(MonitoredActivity activity) {
-            // We get here only when the onDestroyed being called before
-            // the cleanupRunner. So, run it now and remove it from the queue
+            if (activity.isFinishing()) {
+                // Nobody is left to see the result, so stop the job rather than let it run on
+                progress.cancel();
+            }
+            // Otherwise it's being replaced, e.g. on rotation, and the result is handed over
             cleanupRunner.run();
             handler.removeCallbacks(cleanupRunner);
         }
-
-        @Override
-        public void onActivityStopped(MonitoredActivity activity) {
-            dialog.hide();
-        }
-
-        @Override
-        public void onActivityStarted(MonitoredActivity activity) {
-            dialog.show();
-        }
     }
 
 }
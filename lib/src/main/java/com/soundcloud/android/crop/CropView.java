@@ -0,0 +1,712 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import com.soundcloud.android.crop.core.CropPlanner;
+import com.soundcloud.android.crop.core.CropRect;
+import com.soundcloud.android.crop.core.Size;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The crop screen as a view, for embedding in your own layouts: the zoomable image with
+ * its crop rectangle. Load an image with {@link #load(Uri)}, then {@link #crop(Callback)}
+ * decodes the selected area from the source in the background.
+ * <p>
+ * The decoded image is kept while the view is detached, so it can move between screens.
+ * Call {@link #release()} once it's no longer needed.
+ */
+public class CropView extends FrameLayout {
+
+    // Delay after the crop rect stops moving before we start decoding it in the background
+    private static final int SPECULATIVE_DELAY_MS = 300;
+    // Speculative decode may use at most this fraction of the free heap
+    private static final int SPECULATIVE_MEMORY_DIVISOR = 4;
+
+    /**
+     * Called on the main thread when {@link #load(Uri)} finishes
+     */
+    public interface OnLoadListener {
+        void onLoaded();
+
+        void onLoadFailed(Throwable error);
+    }
+
+    /**
+     * Called on the main thread as {@link #crop(Callback)} makes progress
+     */
+    public interface OnProgressListener {
+        /**
+         * @param fraction Part of the crop done, from 0 to 1
+         */
+        void onProgress(float fraction);
+    }
+
+    /**
+     * Receives the result of {@link #crop(Callback)} on the main thread
+     */
+    public interface Callback {
+        void onCropped(Result result);
+    }
+
+    /**
+     * Outcome of a crop
+     */
+    public static final class Result {
+
+        private final Bitmap bitmap;
+        private final int rotation;
+        private final Throwable error;
+        private final int degradation;
+        private final CropMetrics metrics;
+
+        Result(Bitmap bitmap, int rotation, Throwable error, int degradation, CropMetrics metrics) {
+            this.bitmap = bitmap;
+            this.rotation = rotation;
+            this.error = error;
+            this.degradation = degradation;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return The cropped image, or null if the crop failed. Owned by the caller, who should recycle it.
+         */
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * @return Exif rotation of the source in degrees, which isn't applied to the bitmap
+         */
+        public int getRotation() {
+            return rotation;
+        }
+
+        /**
+         * @return What made the crop fail, or null
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return How far the crop had to fall back to fit in memory, see {@link Crop#getDegradationLevel}
+         */
+        public int getDegradationLevel() {
+            return degradation;
+        }
+
+        /**
+         * @return Stage timings and memory use of loading and cropping the image
+         */
+        public CropMetrics getMetrics() {
+            return metrics;
+        }
+    }
+
+    final CropImageView imageView;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int aspectX;
+    private int aspectY;
+    private int maxX;
+    private int maxY;
+
+    private CropSession session;
+    private HighlightView highlight;
+    // The highlight is set up once the image has been laid out
+    private boolean highlightPending;
+    private int loadGeneration;
+    private OnLoadListener onLoadListener;
+    private OnProgressListener onProgressListener;
+    private SpeculativeCrop speculativeCrop;
+    private CropTask cropTask;
+
+    private final Runnable speculativeCropStarter = new Runnable() {
+        public void run() {
+            startSpeculativeCrop();
+        }
+    };
+
+    private final Runnable highlightSetup = new Runnable() {
+        public void run() {
+            setUpHighlight();
+        }
+    };
+
+    public CropView(Context context) {
+        this(context, null);
+    }
+
+    public CropView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CropView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        imageView = new CropImageView(context);
+        addView(imageView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        imageView.setCropRectListener(new CropImageView.CropRectListener() {
+            @Override
+            public void onCropRectChanging() {
+                cancelSpeculativeCrop();
+            }
+
+            @Override
+            public void onCropRectSettled() {
+                scheduleSpeculativeCrop();
+            }
+        });
+        imageView.setRecycler(new ImageViewTouchBase.Recycler() {
+            @Override
+            public void recycle(Bitmap b) {
+                // The preview is released along with the session, which may still need it
+                if (session != null && b == session.preview.getBitmap()) {
+                    return;
+                }
+                PreviewCache.recycle(b);
+                System.gc();
+            }
+        });
+    }
+
+    /**
+     * Fix the aspect ratio of the crop area. Takes effect for the next image loaded.
+     *
+     * @param x Aspect X, or 0 for a free aspect ratio
+     * @param y Aspect Y, or 0 for a free aspect ratio
+     */
+    public void setAspect(int x, int y) {
+        aspectX = x;
+        aspectY = y;
+    }
+
+    /**
+     * Limit the size of cropped images, which are scaled down to fit
+     *
+     * @param width  Max width, or 0 for no limit
+     * @param height Max height, or 0 for no limit
+     */
+    public void setMaxSize(int width, int height) {
+        maxX = width;
+        maxY = height;
+    }
+
+    public void setOnLoadListener(OnLoadListener listener) {
+        onLoadListener = listener;
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        onProgressListener = listener;
+    }
+
+    /**
+     * @return The view showing the image, e.g. to collect its frame metrics
+     */
+    public CropImageView getImageView() {
+        return imageView;
+    }
+
+    /**
+     * Read and decode an image in the background, replacing the current one. Uses the
+     * preview from {@link Crop#prefetch} or the {@link PreviewCache} if there is one.
+     *
+     * @param source Uri for image to crop
+     */
+    public void load(final Uri source) {
+        release();
+        final int generation = loadGeneration;
+        final Context context = getContext().getApplicationContext();
+        new Thread(new Runnable() {
+            public void run() {
+                CropSession loaded = PreviewPrefetcher.take(source);
+                Throwable error = null;
+                if (loaded == null) {
+                    try {
+                        loaded = PreviewLoader.load(context, source);
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (SecurityException e) {
+                        error = e;
+                    } catch (OutOfMemoryError e) {
+                        error = e;
+                    }
+                }
+                final CropSession result = loaded;
+                final Throwable failure = loaded == null || loaded.preview.getBitmap() != null ? error
+                        : new IOException("Cannot decode " + source);
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (generation != loadGeneration) {
+                            // Released or replaced while we were loading
+                            if (result != null) {
+                                PreviewCache.recycle(result.preview);
+                            }
+                            return;
+                        }
+                        if (failure == null) {
+                            setSession(result);
+                        }
+                        if (onLoadListener != null) {
+                            if (failure == null) {
+                                onLoadListener.onLoaded();
+                            } else {
+                                onLoadListener.onLoadFailed(failure);
+                            }
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * @return Whether an image is shown, so that it can be cropped
+     */
+    public boolean isLoaded() {
+        return session != null && session.preview.getBitmap() != null;
+    }
+
+    /**
+     * @return Whether a crop is in progress
+     */
+    public boolean isCropping() {
+        return cropTask != null;
+    }
+
+    /**
+     * Decode the crop area from the source in the background, at full resolution up to the
+     * maximum size. Touches are ignored until the result is delivered.
+     *
+     * @param callback Callback for the result
+     * @throws IllegalStateException if no image is loaded, or a crop is already in progress
+     */
+    public void crop(Callback callback) {
+        crop(callback, false);
+    }
+
+    /*
+     * Releasing the preview before a region decode leaves more memory for it, but
+     * the view can't be used for another crop afterwards.
+     */
+    void crop(Callback callback, boolean releasePreview) {
+        if (highlight == null || !isLoaded()) {
+            throw new IllegalStateException("No image to crop");
+        }
+        if (cropTask != null) {
+            throw new IllegalStateException("Already cropping");
+        }
+        handler.removeCallbacks(speculativeCropStarter);
+        Rect rect = getScaledCropRect();
+        Size outSize = CropPlanner.outputSize(rect.width(), rect.height(), maxX, maxY);
+
+        SpeculativeCrop speculative = speculativeCrop;
+        speculativeCrop = null;
+        if (speculative != null && !speculative.matches(rect, outSize.width, outSize.height)) {
+            speculative.cancel();
+            speculative = null;
+        }
+        // A preview restored from a snapshot has been re-encoded, so it's not the source pixels
+        boolean fromPreview = session.sampleSize == 1 && !session.previewFromSnapshot;
+        Bitmap preview = fromPreview ? session.preview.getBitmap() : null;
+        if (releasePreview && speculative == null && !fromPreview) {
+            // Release memory now
+            releasePreview();
+        }
+
+        imageView.locked = true;
+        cropTask = new CropTask(callback, rect, outSize, speculative, preview, releasePreview);
+        cropTask.thread.start();
+    }
+
+    /**
+     * Stop the crop in progress without delivering its result. The decode stops at its
+     * next strip or band of rows, and frees what it has decoded so far.
+     */
+    public void cancelCrop() {
+        if (cropTask != null) {
+            cropTask.cancel();
+            cropTask = null;
+            imageView.locked = false;
+        }
+    }
+
+    /**
+     * Stop loading or cropping, and free the decoded image. A crop in progress doesn't
+     * deliver its result. The view can be reused by loading another image.
+     */
+    public void release() {
+        loadGeneration++;
+        cancelSpeculativeCrop();
+        handler.removeCallbacks(highlightSetup);
+        highlightPending = false;
+        cancelCrop();
+        imageView.locked = false;
+        releasePreview();
+        session = null;
+    }
+
+    private void releasePreview() {
+        imageView.highlightViews.clear();
+        highlight = null;
+        imageView.clear();
+        if (session != null) {
+            session.metrics.released(session.preview.getBitmap());
+            PreviewCache.recycle(session.preview);
+        }
+    }
+
+    /*
+     * Shows an image that has already been decoded, e.g. retained across a configuration
+     * change, at the crop area and zoom saved with it.
+     */
+    void setSession(CropSession session) {
+        cancelSpeculativeCrop();
+        imageView.highlightViews.clear();
+        highlight = null;
+        this.session = session;
+        imageView.setImageRotateBitmapResetBase(session.preview, true);
+        highlightPending = true;
+        requestLayout();
+    }
+
+    // The image being cropped with the current crop area and zoom, or null
+    CropSession getSession() {
+        if (session != null && highlight != null) {
+            session.cropRect = new CropRect();
+            session.cropRect.set(highlight.cropRect);
+            session.suppMatrix = imageView.getSuppMatrixValues();
+        }
+        return session;
+    }
+
+    boolean hasCropArea() {
+        return highlight != null;
+    }
+
+    // The crop area in source coordinates, before the Exif rotation
+    Rect getScaledCropRect() {
+        return highlight.getScaledCropRect(session.sampleSize);
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        if (highlightPending) {
+            highlightPending = false;
+            // Changing the matrix and adding views doesn't belong in a layout pass
+            handler.post(highlightSetup);
+        }
+    }
+
+    private void setUpHighlight() {
+        if (session == null || session.preview.getBitmap() == null) {
+            return;
+        }
+        if (imageView.getScale() == 1F) {
+            imageView.center();
+        }
+        if (session.suppMatrix != null) {
+            // Before the setup below, which maps the crop area through the zoom
+            imageView.setSuppMatrixValues(session.suppMatrix);
+        }
+
+        HighlightView hv = new HighlightView(imageView);
+        final int width = session.preview.getWidth();
+        final int height = session.preview.getHeight();
+
+        Rect imageRect = new Rect(0, 0, width, height);
+
+        CropRect cropRect = new CropRect();
+        if (session.cropRect != null) {
+            cropRect.set(session.cropRect);
+        } else {
+            // Make the default size about 4/5 of the width or height
+            CropPlanner.defaultCropRect(width, height, aspectX, aspectY, cropRect);
+        }
+        hv.setup(imageView.getUnrotatedMatrix(), imageRect, cropRect, aspectX != 0 && aspectY != 0);
+        imageView.highlightViews.clear();
+        imageView.add(hv);
+        hv.setFocus(true);
+        highlight = hv;
+        scheduleSpeculativeCrop();
+    }
+
+    private void scheduleSpeculativeCrop() {
+        cancelSpeculativeCrop();
+        handler.postDelayed(speculativeCropStarter, SPECULATIVE_DELAY_MS);
+    }
+
+    void cancelSpeculativeCrop() {
+        handler.removeCallbacks(speculativeCropStarter);
+        if (speculativeCrop != null) {
+            speculativeCrop.cancel();
+            speculativeCrop = null;
+        }
+    }
+
+    private void startSpeculativeCrop() {
+        // Full resolution previews are cropped directly, so there's nothing to gain
+        if (highlight == null || cropTask != null || !isLoaded()
+                || (session.sampleSize == 1 && !session.previewFromSnapshot)) {
+            return;
+        }
+        Rect r = getScaledCropRect();
+        Size outSize = CropPlanner.outputSize(r.width(), r.height(), maxX, maxY);
+
+        // Only speculate when the region and its scaled copy comfortably fit in memory
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long needed = 4L * r.width() * r.height() + 4L * outSize.width * outSize.height;
+        if (needed > free / SPECULATIVE_MEMORY_DIVISOR) {
+            return;
+        }
+        speculativeCrop = new SpeculativeCrop(r, outSize.width, outSize.height);
+        speculativeCrop.start();
+    }
+
+    private class SpeculativeCrop implements Runnable {
+
+        private final Rect rect;
+        private final int outWidth;
+        private final int outHeight;
+        private final Uri sourceUri = session.sourceUri;
+        private final int exifRotation = session.preview.getRotation();
+        private final Thread thread = new Thread(this);
+        // Merged into the crop metrics only if we use the result
+        private final CropMetrics metrics = new CropMetrics();
+        private final CropProgress progress = new CropProgress(null);
+
+        private boolean cancelled;
+        private Bitmap result;
+
+        SpeculativeCrop(Rect rect, int outWidth, int outHeight) {
+            this.rect = rect;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean matches(Rect rect, int outWidth, int outHeight) {
+            return this.rect.equals(rect) && this.outWidth == outWidth && this.outHeight == outHeight;
+        }
+
+        public void run() {
+            InputStream is = null;
+            Bitmap bitmap = null;
+            RegionCropper cropper = new RegionCropper(getContext().getContentResolver(), sourceUri, exifRotation,
+                    metrics, progress);
+            try {
+                is = getContext().getContentResolver().openInputStream(sourceUri);
+                BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
+                try {
+                    Rect sourceRect = cropper.getSourceRect(rect, decoder.getWidth(), decoder.getHeight());
+                    bitmap = cropper.decodeRegion(decoder, sourceRect, outWidth, outHeight);
+                } finally {
+                    decoder.recycle();
+                }
+            } catch (IOException e) {
+                Log.e("Speculative crop failed: " + e.getMessage(), e);
+            } catch (IllegalArgumentException e) {
+                Log.e("Speculative crop failed: " + e.getMessage(), e);
+            } catch (OutOfMemoryError e) {
+                Log.e("OOM in speculative crop: " + e.getMessage(), e);
+            } catch (CancellationException e) {
+                // The decode already freed what it had
+            } finally {
+                CropUtil.closeSilently(is);
+            }
+            synchronized (this) {
+                if (cancelled && bitmap != null) {
+                    bitmap.recycle();
+                } else {
+                    result = bitmap;
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            progress.cancel();
+            if (result != null) {
+                result.recycle();
+                result = null;
+            }
+        }
+
+        /*
+         * Waits for the background decode, so that it never competes with ours for memory,
+         * and hands over the result.
+         */
+        Bitmap take() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                Bitmap bitmap = result;
+                result = null;
+                return bitmap;
+            }
+        }
+    }
+
+    // Decodes the crop area in the background and delivers the result, unless released first
+    private class CropTask implements Runnable {
+
+        private final Callback callback;
+        private final Rect rect;
+        private final Size outSize;
+        private final SpeculativeCrop speculative;
+        private final Bitmap preview;
+        private final boolean releasePreview;
+        private final CropSession session = CropView.this.session;
+        private final Thread thread = new Thread(this);
+
+        private volatile boolean cancelled;
+
+        private final CropProgress progress = new CropProgress(new CropProgress.Listener() {
+            public void onProgress(final float fraction) {
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (cropTask == CropTask.this && onProgressListener != null) {
+                            onProgressListener.onProgress(fraction);
+                        }
+                    }
+                });
+            }
+        });
+
+        CropTask(Callback callback, Rect rect, Size outSize, SpeculativeCrop speculative, Bitmap preview,
+                 boolean releasePreview) {
+            this.callback = callback;
+            this.rect = rect;
+            this.outSize = outSize;
+            this.speculative = speculative;
+            this.preview = preview;
+            this.releasePreview = releasePreview;
+            if (preview != null) {
+                // Read on our thread, so it must not be recycled if the view is released meanwhile
+                PreviewCache.acquire(preview);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            progress.cancel();
+            if (speculative != null) {
+                speculative.cancel();
+            }
+        }
+
+        public void run() {
+            long trace = CropTrace.begin("CropView.crop");
+            int exifRotation = session.preview.getRotation();
+            RegionCropper cropper = new RegionCropper(getContext().getContentResolver(), session.sourceUri,
+                    exifRotation, session.metrics, progress);
+            Bitmap bitmap = null;
+            Throwable error = null;
+            try {
+                if (speculative != null) {
+                    bitmap = speculative.take();
+                    if (bitmap != null) {
+                        session.metrics.merge(speculative.metrics);
+                    }
+                }
+                if (bitmap == null && preview != null && !preview.isRecycled()) {
+                    bitmap = cropper.cropFromPreview(preview, rect, outSize.width, outSize.height);
+                }
+                if (bitmap == null) {
+                    bitmap = cropper.decodeRegionCrop(rect, outSize.width, outSize.height);
+                }
+                progress.update(1F);
+            } catch (CancellationException e) {
+                // Nobody is waiting for the result any more
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                handler.post(new Runnable() {
+                    public void run() {
+                        releasePreviewReference();
+                    }
+                });
+                return;
+            } catch (IOException e) {
+                Log.e("Error cropping image: " + e.getMessage(), e);
+                error = e;
+            } catch (IllegalArgumentException e) {
+                error = e;
+            } catch (OutOfMemoryError e) {
+                Log.e("OOM cropping image: " + e.getMessage(), e);
+                error = e;
+            } finally {
+                CropTrace.end("CropView.crop", trace);
+            }
+            if (bitmap == null && error == null) {
+                error = new IOException("Cannot decode " + session.sourceUri);
+            }
+            final Result result = new Result(bitmap, exifRotation, error, cropper.degradation, session.metrics);
+            handler.post(new Runnable() {
+                public void run() {
+                    deliver(result);
+                }
+            });
+        }
+
+        private void releasePreviewReference() {
+            if (preview != null) {
+                PreviewCache.recycle(preview);
+            }
+        }
+
+        private void deliver(Result result) {
+            releasePreviewReference();
+            if (cancelled || cropTask != this) {
+                if (result.bitmap != null) {
+                    result.bitmap.recycle();
+                }
+                return;
+            }
+            cropTask = null;
+            imageView.locked = false;
+            if (releasePreview && isLoaded()) {
+                releasePreview();
+            }
+            callback.onCropped(result);
+        }
+    }
+
+}
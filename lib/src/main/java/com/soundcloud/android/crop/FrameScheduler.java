@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/*
+ * Runs callbacks on the next display frame. Uses Choreographer where available,
+ * otherwise falls back to posting to a Handler at the nominal frame interval.
+ * Frame times are in the System.nanoTime() time base. Must be used from the UI thread.
+ */
+abstract class FrameScheduler {
+
+    abstract static class FrameCallback {
+
+        // Platform callback wrapping this one, created on first use
+        private Object wrapper;
+
+        abstract void doFrame(long frameTimeNanos);
+    }
+
+    public static FrameScheduler create() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new ChoreographerScheduler();
+        }
+        return new HandlerScheduler();
+    }
+
+    abstract void postFrameCallback(FrameCallback callback);
+
+    abstract void removeFrameCallback(FrameCallback callback);
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerScheduler extends FrameScheduler {
+
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        @Override
+        void postFrameCallback(FrameCallback callback) {
+            choreographer.postFrameCallback(wrap(callback));
+        }
+
+        @Override
+        void removeFrameCallback(FrameCallback callback) {
+            if (callback.wrapper != null) {
+                choreographer.removeFrameCallback((Choreographer.FrameCallback) callback.wrapper);
+            }
+        }
+
+        private Choreographer.FrameCallback wrap(final FrameCallback callback) {
+            if (callback.wrapper == null) {
+                callback.wrapper = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        callback.doFrame(frameTimeNanos);
+                    }
+                };
+            }
+            return (Choreographer.FrameCallback) callback.wrapper;
+        }
+    }
+
+    private static class HandlerScheduler extends FrameScheduler {
+
+        private static final long FRAME_DELAY_MS = 16;
+
+        private final Handler handler = new Handler();
+
+        @Override
+        void postFrameCallback(FrameCallback callback) {
+            handler.postDelayed(wrap(callback), FRAME_DELAY_MS);
+        }
+
+        @Override
+        void removeFrameCallback(FrameCallback callback) {
+            if (callback.wrapper != null) {
+                handler.removeCallbacks((Runnable) callback.wrapper);
+            }
+        }
+
+        private Runnable wrap(final FrameCallback callback) {
+            if (callback.wrapper == null) {
+                callback.wrapper = new Runnable() {
+                    public void run() {
+                        callback.doFrame(System.nanoTime());
+                    }
+                };
+            }
+            return (Runnable) callback.wrapper;
+        }
+    }
+
+}
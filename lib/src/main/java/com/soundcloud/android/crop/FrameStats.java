@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+/**
+ * Drawing performance of a {@link CropImageView} over one session, i.e. while it was attached to a window.
+ * <p>
+ * Draw durations are the time spent in onDraw on the UI thread. With hardware acceleration
+ * that is the time to record the drawing commands, not to execute them on the GPU.
+ */
+public final class FrameStats {
+
+    private final LatencyStats imageDraw = new LatencyStats();
+    private final LatencyStats overlayDraw = new LatencyStats();
+    private int interactiveFrames;
+    private int droppedFrames;
+
+    void recordFrame(long imageNanos, long overlayNanos) {
+        imageDraw.record(imageNanos);
+        overlayDraw.record(overlayNanos);
+    }
+
+    void recordInteractiveFrame(int dropped) {
+        interactiveFrames++;
+        droppedFrames += dropped;
+    }
+
+    void reset() {
+        imageDraw.reset();
+        overlayDraw.reset();
+        interactiveFrames = 0;
+        droppedFrames = 0;
+    }
+
+    /**
+     * @return Time spent drawing the image for each frame
+     */
+    public LatencyStats getImageDrawStats() {
+        return imageDraw;
+    }
+
+    /**
+     * @return Time spent drawing the crop overlay for each frame
+     */
+    public LatencyStats getOverlayDrawStats() {
+        return overlayDraw;
+    }
+
+    /**
+     * @return Number of frames drawn during drags, zoom animations and flings
+     */
+    public int getInteractiveFrames() {
+        return interactiveFrames;
+    }
+
+    /**
+     * @return Number of display frames that were missed during drags, zoom animations and flings
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+}
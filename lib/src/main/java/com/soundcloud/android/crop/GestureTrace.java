@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.view.MotionEvent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Touch events on a {@link CropImageView}, in a compact binary form that can be saved
+ * on a device and replayed later, e.g. in a performance regression test.
+ * <p>
+ * Each sample stores its time, action and pointer positions at 1/8 pixel precision. Samples that
+ * the platform batched into one MotionEvent are replayed as one, so folding of historical
+ * samples behaves the same as on the device.
+ */
+public final class GestureTrace {
+
+    private static final int MAGIC = 0x43475431; // "CGT1"
+    // Coordinates are stored as fixed point shorts
+    private static final float SUBPIXELS = 8F;
+    private static final int FLAG_BATCHED = 0x80;
+    private static final int MAX_POINTERS = 8;
+
+    private final int viewWidth;
+    private final int viewHeight;
+    private final int size;
+    // Per sample: time since the first sample, action with flags, pointer count
+    private final int[] times;
+    private final byte[] actions;
+    private final byte[] pointerCounts;
+    // Per sample and pointer, MAX_POINTERS entries per sample
+    private final byte[] pointerIds;
+    private final short[] xs;
+    private final short[] ys;
+    // Index of the first sample of each MotionEvent, and the time its gesture went down
+    private final int[] eventStarts;
+    private final int[] eventDownTimes;
+    private final int eventCount;
+
+    private GestureTrace(int viewWidth, int viewHeight, int size, int[] times, byte[] actions,
+                         byte[] pointerCounts, byte[] pointerIds, short[] xs, short[] ys) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        this.size = size;
+        this.times = times;
+        this.actions = actions;
+        this.pointerCounts = pointerCounts;
+        this.pointerIds = pointerIds;
+        this.xs = xs;
+        this.ys = ys;
+
+        int[] starts = new int[size];
+        int[] downTimes = new int[size];
+        int count = 0;
+        int downTime = 0;
+        for (int i = 0; i < size; i++) {
+            if ((actions[i] & FLAG_BATCHED) == 0) {
+                if ((actions[i] & 0x7) == MotionEvent.ACTION_DOWN) {
+                    downTime = times[i];
+                }
+                downTimes[count] = downTime;
+                starts[count++] = i;
+            }
+        }
+        eventStarts = Arrays.copyOf(starts, count);
+        eventDownTimes = Arrays.copyOf(downTimes, count);
+        eventCount = count;
+    }
+
+    /**
+     * Collects touch events, see {@link CropImageView#setGestureRecorder(Recorder)}.
+     */
+    public static final class Recorder {
+
+        private static final int INITIAL_CAPACITY = 256;
+
+        private int viewWidth;
+        private int viewHeight;
+        private long firstEventTime = -1;
+        private int size;
+        private int[] times = new int[INITIAL_CAPACITY];
+        private byte[] actions = new byte[INITIAL_CAPACITY];
+        private byte[] pointerCounts = new byte[INITIAL_CAPACITY];
+        private byte[] pointerIds = new byte[INITIAL_CAPACITY * MAX_POINTERS];
+        private short[] xs = new short[INITIAL_CAPACITY * MAX_POINTERS];
+        private short[] ys = new short[INITIAL_CAPACITY * MAX_POINTERS];
+
+        void setViewSize(int width, int height) {
+            viewWidth = width;
+            viewHeight = height;
+        }
+
+        void record(MotionEvent event) {
+            if (firstEventTime < 0) {
+                firstEventTime = event.getDownTime();
+            }
+            int action = event.getActionMasked() | (event.getActionIndex() << 3);
+            int pointers = Math.min(MAX_POINTERS, event.getPointerCount());
+            int history = event.getHistorySize();
+            for (int h = 0; h <= history; h++) {
+                ensureCapacity();
+                int index = size++;
+                boolean current = h == history;
+                long time = current ? event.getEventTime() : event.getHistoricalEventTime(h);
+                times[index] = (int) (time - firstEventTime);
+                // Historical samples are only ever moves, the action applies to the whole batch
+                actions[index] = (byte) (h == 0 ? action : (action | FLAG_BATCHED));
+                pointerCounts[index] = (byte) pointers;
+                for (int p = 0; p < pointers; p++) {
+                    int slot = index * MAX_POINTERS + p;
+                    pointerIds[slot] = (byte) event.getPointerId(p);
+                    xs[slot] = quantize(current ? event.getX(p) : event.getHistoricalX(p, h));
+                    ys[slot] = quantize(current ? event.getY(p) : event.getHistoricalY(p, h));
+                }
+            }
+        }
+
+        private void ensureCapacity() {
+            if (size == times.length) {
+                int capacity = times.length * 2;
+                times = Arrays.copyOf(times, capacity);
+                actions = Arrays.copyOf(actions, capacity);
+                pointerCounts = Arrays.copyOf(pointerCounts, capacity);
+                pointerIds = Arrays.copyOf(pointerIds, capacity * MAX_POINTERS);
+                xs = Arrays.copyOf(xs, capacity * MAX_POINTERS);
+                ys = Arrays.copyOf(ys, capacity * MAX_POINTERS);
+            }
+        }
+
+        /**
+         * @return The events recorded so far
+         */
+        public GestureTrace toTrace() {
+            return new GestureTrace(viewWidth, viewHeight, size, Arrays.copyOf(times, size),
+                    Arrays.copyOf(actions, size), Arrays.copyOf(pointerCounts, size),
+                    Arrays.copyOf(pointerIds, size * MAX_POINTERS),
+                    Arrays.copyOf(xs, size * MAX_POINTERS), Arrays.copyOf(ys, size * MAX_POINTERS));
+        }
+    }
+
+    private static short quantize(float coordinate) {
+        float fixed = coordinate * SUBPIXELS;
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(fixed)));
+    }
+
+    public int getViewWidth() {
+        return viewWidth;
+    }
+
+    public int getViewHeight() {
+        return viewHeight;
+    }
+
+    /**
+     * @return Number of MotionEvents, each with one or more samples
+     */
+    public int getMotionEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return Time of the last sample of a MotionEvent, in milliseconds since the first one
+     */
+    public long getEventTime(int event) {
+        return times[lastSample(event)];
+    }
+
+    /**
+     * Rebuild a recorded MotionEvent, including its historical samples. Recycle it after use.
+     *
+     * @param event     Index of the MotionEvent
+     * @param startTime Uptime in milliseconds to replay the first sample at
+     */
+    @SuppressWarnings("deprecation")
+    public MotionEvent obtainMotionEvent(int event, long startTime) {
+        int first = eventStarts[event];
+        int last = lastSample(event);
+        int pointers = pointerCounts[first];
+        int action = actions[first] & ~FLAG_BATCHED;
+        int actionMasked = action & 0x7;
+        int actionIndex = action >> 3;
+
+        int[] ids = new int[pointers];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointers];
+        for (int p = 0; p < pointers; p++) {
+            ids[p] = pointerIds[first * MAX_POINTERS + p];
+            coords[p] = new MotionEvent.PointerCoords();
+        }
+
+        MotionEvent motionEvent = null;
+        for (int i = first; i <= last; i++) {
+            for (int p = 0; p < pointers; p++) {
+                coords[p].x = xs[i * MAX_POINTERS + p] / SUBPIXELS;
+                coords[p].y = ys[i * MAX_POINTERS + p] / SUBPIXELS;
+                coords[p].pressure = 1F;
+                coords[p].size = 1F;
+            }
+            if (motionEvent == null) {
+                // The API 14 overload with PointerProperties isn't available on our minimum SDK
+                motionEvent = MotionEvent.obtain(startTime + eventDownTimes[event], startTime + times[i],
+                        actionMasked | (actionIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT),
+                        pointers, ids, coords, 0, 1F, 1F, 0, 0, 0, 0);
+            } else {
+                motionEvent.addBatch(startTime + times[i], coords, 0);
+            }
+        }
+        return motionEvent;
+    }
+
+    private int lastSample(int event) {
+        return event + 1 < eventCount ? eventStarts[event + 1] - 1 : size - 1;
+    }
+
+    /**
+     * Write the trace in its binary form
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeShort(viewWidth);
+        out.writeShort(viewHeight);
+        out.writeInt(size);
+        int previousTime = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarint(out, times[i] - previousTime);
+            previousTime = times[i];
+            out.writeByte(actions[i]);
+            out.writeByte(pointerCounts[i]);
+            for (int p = 0; p < pointerCounts[i]; p++) {
+                int slot = i * MAX_POINTERS + p;
+                out.writeByte(pointerIds[slot]);
+                out.writeShort(xs[slot]);
+                out.writeShort(ys[slot]);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a trace written by {@link #writeTo(OutputStream)}
+     *
+     * @throws IOException If the stream doesn't contain a trace
+     */
+    public static GestureTrace readFrom(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a gesture trace");
+        }
+        int viewWidth = in.readUnsignedShort();
+        int viewHeight = in.readUnsignedShort();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid gesture trace size " + size);
+        }
+        int[] times = new int[size];
+        byte[] actions = new byte[size];
+        byte[] pointerCounts = new byte[size];
+        byte[] pointerIds = new byte[size * MAX_POINTERS];
+        short[] xs = new short[size * MAX_POINTERS];
+        short[] ys = new short[size * MAX_POINTERS];
+        int time = 0;
+        for (int i = 0; i < size; i++) {
+            time += readVarint(in);
+            times[i] = time;
+            actions[i] = in.readByte();
+            pointerCounts[i] = in.readByte();
+            if (pointerCounts[i] < 1 || pointerCounts[i] > MAX_POINTERS) {
+                throw new IOException("Invalid pointer count " + pointerCounts[i]);
+            }
+            for (int p = 0; p < pointerCounts[i]; p++) {
+                int slot = i * MAX_POINTERS + p;
+                pointerIds[slot] = in.readByte();
+                xs[slot] = in.readShort();
+                ys[slot] = in.readShort();
+            }
+        }
+        return new GestureTrace(viewWidth, viewHeight, size, times, actions, pointerCounts, pointerIds, xs, ys);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
@@ -31,6 +31,9 @@ import android.os.Build;
 import android.util.TypedValue;
 import android.view.View;
 
+import com.soundcloud.android.crop.core.CropGeometry;
+import com.soundcloud.android.crop.core.CropRect;
+
 /*
  * Modified from version in AOSP.
  *
@@ -55,16 +58,25 @@ class HighlightView {
     enum ModifyMode { None, Move, Grow }
     enum HandleMode { Changing, Always, Never }
 
-    RectF cropRect; // Image space
-    Rect drawRect; // Screen space
+    final CropRect cropRect = new CropRect(); // Image space
+    final Rect drawRect = new Rect(); // Screen space
     Matrix matrix;
-    private RectF imageRect; // Image space
+    private final CropRect imageRect = new CropRect(); // Image space
+
+    // Scratch objects, so that drawing and dragging don't allocate
+    private final Path outlinePath = new Path();
+    private final RectF drawRectF = new RectF();
+    private final Rect viewDrawingRect = new Rect();
+    private final Rect layoutRect = new Rect();
+    private final RectF mappedRect = new RectF();
+    private final Rect invalRect = new Rect();
 
     private final Paint outsidePaint = new Paint();
     private final Paint outlinePaint = new Paint();
     private final Paint handlePaint = new Paint();
 
     private View viewContext; // View displaying image
+    private PerfCounters perfCounters;
     private boolean showThirds;
     private boolean showCircle;
     private int highlightColor;
@@ -79,6 +91,9 @@ class HighlightView {
 
     public HighlightView(View context) {
         viewContext = context;
+        if (context instanceof ImageViewTouchBase) {
+            perfCounters = ((ImageViewTouchBase) context).perfCounters;
+        }
         initStyles(context.getContext());
     }
 
@@ -97,15 +112,16 @@ class HighlightView {
         }
     }
 
-    public void setup(Matrix m, Rect imageRect, RectF cropRect, boolean maintainAspectRatio) {
-        matrix = new Matrix(m);
+    // The matrix is shared with the view rather than copied, so it must not be modified here
+    public void setup(Matrix m, Rect imageRect, CropRect cropRect, boolean maintainAspectRatio) {
+        matrix = m;
 
-        this.cropRect = cropRect;
-        this.imageRect = new RectF(imageRect);
+        this.cropRect.set(cropRect);
+        this.imageRect.set(imageRect.left, imageRect.top, imageRect.right, imageRect.bottom);
         this.maintainAspectRatio = maintainAspectRatio;
 
         initialAspectRatio = this.cropRect.width() / this.cropRect.height();
-        drawRect = computeLayout();
+        computeLayout(drawRect);
 
         outsidePaint.setARGB(125, 50, 50, 50);
         outlinePaint.setStyle(Paint.Style.STROKE);
@@ -126,27 +142,27 @@ class HighlightView {
 
     protected void draw(Canvas canvas) {
         canvas.save();
-        Path path = new Path();
         outlinePaint.setStrokeWidth(outlineWidth);
         if (!hasFocus()) {
             outlinePaint.setColor(Color.BLACK);
             canvas.drawRect(drawRect, outlinePaint);
         } else {
-            Rect viewDrawingRect = new Rect();
             viewContext.getDrawingRect(viewDrawingRect);
 
-            path.addRect(new RectF(drawRect), Path.Direction.CW);
+            drawRectF.set(drawRect);
+            outlinePath.reset();
+            outlinePath.addRect(drawRectF, Path.Direction.CW);
             outlinePaint.setColor(highlightColor);
 
             if (isClipPathSupported(canvas)) {
-                canvas.clipPath(path, Region.Op.DIFFERENCE);
+                canvas.clipPath(outlinePath, Region.Op.DIFFERENCE);
                 canvas.drawRect(viewDrawingRect, outsidePaint);
             } else {
                 drawOutsideFallback(canvas);
             }
 
             canvas.restore();
-            canvas.drawPath(path, outlinePaint);
+            canvas.drawPath(outlinePath, outlinePaint);
 
             if (showThirds) {
                 drawThirds(canvas);
@@ -217,7 +233,8 @@ class HighlightView {
 
     private void drawCircle(Canvas canvas) {
         outlinePaint.setStrokeWidth(1);
-        canvas.drawOval(new RectF(drawRect), outlinePaint);
+        drawRectF.set(drawRect);
+        canvas.drawOval(drawRectF, outlinePaint);
     }
 
     public void setMode(ModifyMode mode) {
@@ -229,7 +246,7 @@ class HighlightView {
 
     // Determines which edges are hit by touching at (x, y)
     public int getHit(float x, float y) {
-        Rect r = computeLayout();
+        Rect r = computeLayout(layoutRect);
         final float hysteresis = 20F;
         int retval = GROW_NONE;
 
@@ -264,7 +281,7 @@ class HighlightView {
     // Handles motion (dx, dy) in screen space.
     // The "edge" parameter specifies which edges the user is dragging.
     void handleMotion(int edge, float dx, float dy) {
-        Rect r = computeLayout();
+        Rect r = computeLayout(layoutRect);
         if (edge == MOVE) {
             // Convert to image space before sending to moveBy()
             moveBy(dx * (cropRect.width() / r.width()),
@@ -286,22 +303,13 @@ class HighlightView {
         }
     }
 
-    // Grows the cropping rectangle by (dx, dy) in image space
+    // Moves the cropping rectangle by (dx, dy) in image space
     void moveBy(float dx, float dy) {
-        Rect invalRect = new Rect(drawRect);
+        invalRect.set(drawRect);
 
-        cropRect.offset(dx, dy);
+        CropGeometry.moveBy(cropRect, imageRect, dx, dy);
 
-        // Put the cropping rectangle inside image rectangle
-        cropRect.offset(
-                Math.max(0, imageRect.left - cropRect.left),
-                Math.max(0, imageRect.top  - cropRect.top));
-
-        cropRect.offset(
-                Math.min(0, imageRect.right  - cropRect.right),
-                Math.min(0, imageRect.bottom - cropRect.bottom));
-
-        drawRect = computeLayout();
+        computeLayout(drawRect);
         invalRect.union(drawRect);
         invalRect.inset(-(int) handleRadius, -(int) handleRadius);
         viewContext.invalidate(invalRect);
@@ -309,60 +317,14 @@ class HighlightView {
 
     // Grows the cropping rectangle by (dx, dy) in image space.
     void growBy(float dx, float dy) {
-        if (maintainAspectRatio) {
-            if (dx != 0) {
-                dy = dx / initialAspectRatio;
-            } else if (dy != 0) {
-                dx = dy * initialAspectRatio;
-            }
-        }
-
-        // Don't let the cropping rectangle grow too fast.
-        // Grow at most half of the difference between the image rectangle and
-        // the cropping rectangle.
-        RectF r = new RectF(cropRect);
-        if (dx > 0F && r.width() + 2 * dx > imageRect.width()) {
-            dx = (imageRect.width() - r.width()) / 2F;
-            if (maintainAspectRatio) {
-                dy = dx / initialAspectRatio;
-            }
-        }
-        if (dy > 0F && r.height() + 2 * dy > imageRect.height()) {
-            dy = (imageRect.height() - r.height()) / 2F;
-            if (maintainAspectRatio) {
-                dx = dy * initialAspectRatio;
-            }
-        }
-
-        r.inset(-dx, -dy);
+        invalRect.set(drawRect);
 
-        // Don't let the cropping rectangle shrink too fast
-        final float widthCap = 25F;
-        if (r.width() < widthCap) {
-            r.inset(-(widthCap - r.width()) / 2F, 0F);
-        }
-        float heightCap = maintainAspectRatio
-                ? (widthCap / initialAspectRatio)
-                : widthCap;
-        if (r.height() < heightCap) {
-            r.inset(0F, -(heightCap - r.height()) / 2F);
-        }
+        CropGeometry.growBy(cropRect, imageRect, dx, dy, maintainAspectRatio ? initialAspectRatio : 0F);
 
-        // Put the cropping rectangle inside the image rectangle
-        if (r.left < imageRect.left) {
-            r.offset(imageRect.left - r.left, 0F);
-        } else if (r.right > imageRect.right) {
-            r.offset(-(r.right - imageRect.right), 0F);
-        }
-        if (r.top < imageRect.top) {
-            r.offset(0F, imageRect.top - r.top);
-        } else if (r.bottom > imageRect.bottom) {
-            r.offset(0F, -(r.bottom - imageRect.bottom));
-        }
-
-        cropRect.set(r);
-        drawRect = computeLayout();
-        viewContext.invalidate();
+        computeLayout(drawRect);
+        invalRect.union(drawRect);
+        invalRect.inset(-(int) handleRadius, -(int) handleRadius);
+        viewContext.invalidate(invalRect);
     }
 
     // Returns the cropping rectangle in image space with specified scale
@@ -372,16 +334,19 @@ class HighlightView {
     }
 
     // Maps the cropping rectangle from image space to screen space
-    private Rect computeLayout() {
-        RectF r = new RectF(cropRect.left, cropRect.top,
-                            cropRect.right, cropRect.bottom);
-        matrix.mapRect(r);
-        return new Rect(Math.round(r.left), Math.round(r.top),
-                        Math.round(r.right), Math.round(r.bottom));
+    private Rect computeLayout(Rect out) {
+        if (perfCounters != null) {
+            perfCounters.layouts++;
+        }
+        mappedRect.set(cropRect.left, cropRect.top, cropRect.right, cropRect.bottom);
+        matrix.mapRect(mappedRect);
+        out.set(Math.round(mappedRect.left), Math.round(mappedRect.top),
+                Math.round(mappedRect.right), Math.round(mappedRect.bottom));
+        return out;
     }
 
     public void invalidate() {
-        drawRect = computeLayout();
+        computeLayout(drawRect);
     }
 
     public boolean hasFocus() {
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+
+import com.soundcloud.android.crop.core.Pixels;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Hashes computed while saving, so callers don't have to read the output back.
+ */
+class ImageHashes {
+
+    private static final int DHASH_WIDTH = 9;
+    private static final int DHASH_HEIGHT = 8;
+    // Each grid cell averages this many samples in each direction. Scaling straight down to
+    // 9x8 would only read a few source pixels per cell, so noise would change the hash.
+    private static final int DHASH_SAMPLES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Guaranteed to be present on every Android version
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /*
+     * 64-bit difference hash of the image as it is displayed, i.e. after applying the rotation.
+     * Each bit is set when a pixel is brighter than its right neighbour on a 9x8 grayscale grid,
+     * row by row starting with the most significant bit.
+     */
+    public static long dHash(Bitmap bitmap, int rotation) {
+        boolean rotated = (rotation / 90) % 2 != 0;
+        int width = rotated ? DHASH_HEIGHT : DHASH_WIDTH;
+        int height = rotated ? DHASH_WIDTH : DHASH_HEIGHT;
+
+        int[] pixels = boxDownsample(bitmap, width, height, DHASH_SAMPLES);
+        return Pixels.differenceHash(pixels, width, height, rotation);
+    }
+
+    // Only the sampled source rows are read out of the bitmap
+    static int[] boxDownsample(final Bitmap bitmap, int width, int height, int samples) {
+        final int sourceWidth = bitmap.getWidth();
+        return Pixels.boxDownsample(new Pixels.RowReader() {
+            @Override
+            public void readRow(int y, int[] row) {
+                bitmap.getPixels(row, 0, sourceWidth, 0, y, sourceWidth, 1);
+            }
+        }, sourceWidth, bitmap.getHeight(), width, height, samples);
+    }
+
+}
@@ -19,11 +19,13 @@ package com.soundcloud.android.crop;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
+import android.graphics.PointF;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.KeyEvent;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
 import android.widget.ImageView;
 
 /*
@@ -46,13 +48,39 @@ abstract class ImageViewTouchBase extends ImageView {
     // the user has done in terms of zooming and panning.
     //
     // This matrix remains the same when we go from the thumbnail image
-    // to the full size image.
+    // to the full size image. Call suppMatrixChanged() after modifying it.
     protected Matrix suppMatrix = new Matrix();
 
     // This is the final matrix which is computed as the concatentation
     // of the base matrix and the supplementary matrix.
     private final Matrix displayMatrix = new Matrix();
 
+    // The base matrix without the bitmap rotation, and its concatenation
+    // with the supplementary matrix.
+    private final Matrix unrotatedBaseMatrix = new Matrix();
+    private final Matrix unrotatedMatrix = new Matrix();
+
+    // Derived matrices are cached and only recomputed when the version of
+    // one of their inputs changes.
+    private int baseVersion;
+    private int suppVersion;
+    private int displayBaseVersion = -1;
+    private int displaySuppVersion = -1;
+    private int unrotatedBaseVersion = -1;
+    private int unrotatedSuppVersion = -1;
+
+    // What the base matrices were last computed for
+    private Bitmap baseBitmap;
+    private int baseRotation;
+    private int baseWidth;
+    private int baseHeight;
+
+    private final Matrix scratchMatrix = new Matrix();
+    private final RectF scratchRect = new RectF();
+    private final PointF centerDelta = new PointF();
+
+    final PerfCounters perfCounters = new PerfCounters();
+
     // Temporary buffer used for getting the values out of a matrix.
     private final float[] matrixValues = new float[9];
 
@@ -66,7 +94,8 @@ abstract class ImageViewTouchBase extends ImageView {
 
     private Runnable onLayoutRunnable;
 
-    protected Handler handler = new Handler();
+    protected final FrameScheduler frameScheduler = FrameScheduler.create();
+    private final ZoomAnimation zoomAnimation = new ZoomAnimation();
 
     // ImageViewTouchBase will pass a Bitmap to the Recycler if it has finished
     // its use of that Bitmap
@@ -106,11 +135,17 @@ abstract class ImageViewTouchBase extends ImageView {
             r.run();
         }
         if (bitmapDisplayed.getBitmap() != null) {
-            getProperBaseMatrix(bitmapDisplayed, baseMatrix, true);
+            updateBaseMatrix(bitmapDisplayed);
             setImageMatrix(getImageViewMatrix());
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelZoomAnimation();
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_BACK && event.getRepeatCount() == 0) {
@@ -166,6 +201,7 @@ abstract class ImageViewTouchBase extends ImageView {
     }
 
     public void setImageRotateBitmapResetBase(final RotateBitmap bitmap, final boolean resetSupp) {
+        cancelZoomAnimation();
         final int viewWidth = getWidth();
 
         if (viewWidth <= 0)  {
@@ -178,15 +214,19 @@ abstract class ImageViewTouchBase extends ImageView {
         }
 
         if (bitmap.getBitmap() != null) {
-            getProperBaseMatrix(bitmap, baseMatrix, true);
+            updateBaseMatrix(bitmap);
             setImageBitmap(bitmap.getBitmap(), bitmap.getRotation());
         } else {
             baseMatrix.reset();
+            unrotatedBaseMatrix.reset();
+            baseBitmap = null;
+            baseVersion++;
             setImageBitmap(null);
         }
 
         if (resetSupp) {
             suppMatrix.reset();
+            suppMatrixChanged();
         }
         setImageMatrix(getImageViewMatrix());
         maxZoom = calculateMaxZoom();
@@ -196,13 +236,23 @@ abstract class ImageViewTouchBase extends ImageView {
     // * If the image is scaled down below the view's dimensions then center it.
     // * If the image is scaled larger than the view and is translated out of view then translate it back into view.
     protected void center() {
+        // Called on every touch frame, where it's usually already centered
+        if (getCenterDelta(centerDelta)) {
+            postTranslate(centerDelta.x, centerDelta.y);
+            setImageMatrix(getImageViewMatrix());
+        }
+    }
+
+    // Translation center() would apply to the supp matrix, returns false if there's none
+    protected boolean getCenterDelta(PointF delta) {
         final Bitmap bitmap = bitmapDisplayed.getBitmap();
         if (bitmap == null) {
-            return;
+            return false;
         }
         Matrix m = getImageViewMatrix();
 
-        RectF rect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        RectF rect = scratchRect;
+        rect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
         m.mapRect(rect);
 
         float height = rect.height();
@@ -213,8 +263,8 @@ abstract class ImageViewTouchBase extends ImageView {
         deltaY = centerVertical(rect, height, deltaY);
         deltaX = centerHorizontal(rect, width, deltaX);
 
-        postTranslate(deltaX, deltaY);
-        setImageMatrix(getImageViewMatrix());
+        delta.set(deltaX, deltaY);
+        return deltaX != 0 || deltaY != 0;
     }
 
     private float centerVertical(RectF rect, float height, float deltaY) {
@@ -280,20 +330,55 @@ abstract class ImageViewTouchBase extends ImageView {
         matrix.postTranslate((viewWidth  - w * scale) / 2F, (viewHeight - h * scale) / 2F);
     }
 
+    // Recompute the base matrices, but only if the bitmap or view size changed
+    private void updateBaseMatrix(RotateBitmap bitmap) {
+        if (bitmap.getBitmap() == baseBitmap && bitmap.getRotation() == baseRotation
+                && getWidth() == baseWidth && getHeight() == baseHeight) {
+            return;
+        }
+        getProperBaseMatrix(bitmap, baseMatrix, true);
+        getProperBaseMatrix(bitmap, unrotatedBaseMatrix, false);
+        baseBitmap = bitmap.getBitmap();
+        baseRotation = bitmap.getRotation();
+        baseWidth = getWidth();
+        baseHeight = getHeight();
+        baseVersion++;
+        perfCounters.matrixUpdates++;
+    }
+
+    protected void suppMatrixChanged() {
+        suppVersion++;
+    }
+
+    // Changes whenever the image matrix does
+    int getMatrixVersion() {
+        return baseVersion * 31 + suppVersion;
+    }
+
     // Combine the base matrix and the supp matrix to make the final matrix
     protected Matrix getImageViewMatrix() {
-        // The final matrix is computed as the concatentation of the base matrix
-        // and the supplementary matrix
-        displayMatrix.set(baseMatrix);
-        displayMatrix.postConcat(suppMatrix);
+        if (displayBaseVersion != baseVersion || displaySuppVersion != suppVersion) {
+            // The final matrix is computed as the concatentation of the base matrix
+            // and the supplementary matrix
+            displayMatrix.set(baseMatrix);
+            displayMatrix.postConcat(suppMatrix);
+            perfCounters.matrixUpdates++;
+            displayBaseVersion = baseVersion;
+            displaySuppVersion = suppVersion;
+        }
         return displayMatrix;
     }
 
-    public Matrix getUnrotatedMatrix(){
-        Matrix unrotated = new Matrix();
-        getProperBaseMatrix(bitmapDisplayed, unrotated, false);
-        unrotated.postConcat(suppMatrix);
-        return unrotated;
+    // Returns a shared instance, which must not be modified
+    public Matrix getUnrotatedMatrix() {
+        if (unrotatedBaseVersion != baseVersion || unrotatedSuppVersion != suppVersion) {
+            unrotatedMatrix.set(unrotatedBaseMatrix);
+            unrotatedMatrix.postConcat(suppMatrix);
+            perfCounters.matrixUpdates++;
+            unrotatedBaseVersion = baseVersion;
+            unrotatedSuppVersion = suppVersion;
+        }
+        return unrotatedMatrix;
     }
 
     protected float calculateMaxZoom() {
@@ -315,28 +400,69 @@ abstract class ImageViewTouchBase extends ImageView {
         float deltaScale = scale / oldScale;
 
         suppMatrix.postScale(deltaScale, deltaScale, centerX, centerY);
+        suppMatrixChanged();
         setImageMatrix(getImageViewMatrix());
         center();
     }
 
-    protected void zoomTo(final float scale, final float centerX,
-                          final float centerY, final float durationMs) {
-        final float incrementPerMs = (scale - getScale()) / durationMs;
-        final float oldScale = getScale();
-        final long startTime = System.currentTimeMillis();
+    protected void zoomTo(float scale, float centerX, float centerY, float durationMs) {
+        zoomAnimation.start(getScale(), scale, centerX, centerY, durationMs);
+    }
 
-        handler.post(new Runnable() {
-            public void run() {
-                long now = System.currentTimeMillis();
-                float currentMs = Math.min(durationMs, now - startTime);
-                float target = oldScale + (incrementPerMs * currentMs);
-                zoomTo(target, centerX, centerY);
+    // Stops an animated zoom where it is, e.g. because the user touched the view
+    protected void cancelZoomAnimation() {
+        zoomAnimation.cancel();
+    }
 
-                if (currentMs < durationMs) {
-                    handler.post(this);
-                }
+    protected boolean isZoomAnimating() {
+        return zoomAnimation.running;
+    }
+
+    /*
+     * Steps once per display frame, so the matrix is updated at most once for each frame drawn.
+     */
+    private class ZoomAnimation extends FrameScheduler.FrameCallback {
+
+        private final Interpolator interpolator = new DecelerateInterpolator();
+
+        private float fromScale;
+        private float toScale;
+        private float centerX;
+        private float centerY;
+        private long startNanos;
+        private long durationNanos;
+        private boolean running;
+
+        void start(float fromScale, float toScale, float centerX, float centerY, float durationMs) {
+            cancel();
+            this.fromScale = fromScale;
+            this.toScale = toScale;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.startNanos = System.nanoTime();
+            this.durationNanos = Math.max(1L, (long) (durationMs * 1000000L));
+            running = true;
+            frameScheduler.postFrameCallback(this);
+        }
+
+        void cancel() {
+            if (running) {
+                frameScheduler.removeFrameCallback(this);
+                running = false;
+            }
+        }
+
+        @Override
+        void doFrame(long frameTimeNanos) {
+            float progress = Math.min(1f, Math.max(0f, (float) (frameTimeNanos - startNanos) / durationNanos));
+            float scale = fromScale + (toScale - fromScale) * interpolator.getInterpolation(progress);
+            if (progress < 1f) {
+                frameScheduler.postFrameCallback(this);
+            } else {
+                running = false;
             }
-        });
+            zoomTo(scale, centerX, centerY);
+        }
     }
 
     protected void zoomTo(float scale) {
@@ -365,6 +491,7 @@ abstract class ImageViewTouchBase extends ImageView {
         float cy = getHeight() / 2F;
 
         suppMatrix.postScale(rate, rate, cx, cy);
+        suppMatrixChanged();
         setImageMatrix(getImageViewMatrix());
     }
 
@@ -377,7 +504,8 @@ abstract class ImageViewTouchBase extends ImageView {
         float cy = getHeight() / 2F;
 
         // Zoom out to at most 1x
-        Matrix tmp = new Matrix(suppMatrix);
+        Matrix tmp = scratchMatrix;
+        tmp.set(suppMatrix);
         tmp.postScale(1F / rate, 1F / rate, cx, cy);
 
         if (getScale(tmp) < 1F) {
@@ -385,12 +513,30 @@ abstract class ImageViewTouchBase extends ImageView {
         } else {
             suppMatrix.postScale(1F / rate, 1F / rate, cx, cy);
         }
+        suppMatrixChanged();
+        setImageMatrix(getImageViewMatrix());
+        center();
+    }
+
+    // Zoom and pan relative to the base matrix, which stay valid for any size of the same image
+    float[] getSuppMatrixValues() {
+        float[] values = new float[9];
+        suppMatrix.getValues(values);
+        return values;
+    }
+
+    void setSuppMatrixValues(float[] values) {
+        cancelZoomAnimation();
+        suppMatrix.setValues(values);
+        suppMatrixChanged();
         setImageMatrix(getImageViewMatrix());
+        // The view may have a different size now
         center();
     }
 
     protected void postTranslate(float dx, float dy) {
         suppMatrix.postTranslate(dx, dy);
+        suppMatrixChanged();
     }
 
     protected void panBy(float dx, float dy) {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+/**
+ * Distribution of durations, e.g. input latency or frame times.
+ * <p>
+ * Values are counted in 0.1ms buckets up to 100ms, so recording never allocates and
+ * percentiles are accurate to 0.1ms. Longer values count towards the last bucket, but
+ * still show up in {@link #getMaxMillis()}. Not thread safe: read it on the UI thread.
+ */
+public final class LatencyStats {
+
+    private static final long NANOS_PER_BUCKET = 100000;
+    private static final int BUCKETS = 1000;
+
+    private final int[] buckets = new int[BUCKETS];
+    private int count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = (int) Math.min(BUCKETS - 1, nanos / NANOS_PER_BUCKET);
+        buckets[bucket]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * @return Number of values recorded
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean of the values recorded, in milliseconds
+     */
+    public float getMeanMillis() {
+        return count == 0 ? 0f : totalNanos / (float) count / 1000000f;
+    }
+
+    /**
+     * @return Largest value recorded, in milliseconds
+     */
+    public float getMaxMillis() {
+        return maxNanos / 1000000f;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100, e.g. 95
+     * @return Upper bound of the bucket holding the percentile, in milliseconds
+     */
+    public float getPercentileMillis(float percentile) {
+        if (count == 0) {
+            return 0f;
+        }
+        long rank = (long) Math.ceil(percentile / 100f * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min((i + 1) * NANOS_PER_BUCKET, maxNanos) / 1000000f;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the encoded crop, used instead of an output Uri.
+ * <p>
+ * Bytes are written on the crop's background thread as the encoder produces them.
+ * Writes block until the sink accepts them, so a slow consumer slows the encoder down
+ * rather than having output buffered up in memory.
+ * <p>
+ * Sinks live in memory, so they don't survive the process being killed while the
+ * crop screen is open. The crop then fails with an {@link IllegalStateException}.
+ */
+public abstract class OutputSink {
+
+    /**
+     * Receives encoded bytes as they are produced
+     */
+    public interface ChunkListener {
+        /**
+         * @param buffer Buffer holding the chunk, only valid until this method returns
+         * @param offset Start of the chunk in the buffer
+         * @param length Number of bytes in the chunk
+         */
+        void onChunk(byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Called once all chunks have been delivered
+         */
+        void onComplete() throws IOException;
+
+        /**
+         * Called instead of {@link #onComplete()} if the crop is cancelled. The chunks
+         * delivered so far are only part of the image.
+         */
+        void onCancelled();
+
+        /**
+         * Called instead of {@link #onComplete()} if encoding or writing the image fails,
+         * including from one of the other methods. The chunks delivered so far are only part
+         * of the image.
+         *
+         * @param error What went wrong, also delivered to the caller of the crop
+         */
+        void onError(Throwable error);
+    }
+
+    /**
+     * Opens the stream for the encoded image. Called on a background thread.
+     */
+    protected abstract OutputStream open() throws IOException;
+
+    /**
+     * Called on the background thread after the stream has been closed successfully
+     */
+    protected void onComplete() throws IOException {
+    }
+
+    /**
+     * Called on the background thread if the crop is cancelled before the image is complete.
+     * The stream has been closed, and holds part of the image at most.
+     */
+    protected void onCancelled() {
+    }
+
+    /**
+     * Called on the background thread if encoding or writing the image fails, including
+     * from {@link #onComplete()}. The stream has been closed, if it was opened.
+     *
+     * @param error What went wrong, also delivered to the caller of the crop
+     */
+    protected void onError(Throwable error) {
+    }
+
+    /*
+     * Called on the background thread before the stream is closed, if the image won't be
+     * completed. Sinks that write out what's buffered on close can drop it instead.
+     */
+    void abort() {
+    }
+
+    /**
+     * Write the crop to a caller-supplied stream. The stream is closed afterwards.
+     *
+     * @param stream Stream to receive the encoded image
+     */
+    public static OutputSink toStream(final OutputStream stream) {
+        return new OutputSink() {
+            @Override
+            protected OutputStream open() {
+                return stream;
+            }
+        };
+    }
+
+    /**
+     * Keep the crop in memory, in a buffer that grows as needed
+     *
+     * @param initialCapacity Expected size of the encoded image in bytes
+     */
+    public static BufferSink toBuffer(int initialCapacity) {
+        return new BufferSink(initialCapacity);
+    }
+
+    /**
+     * Hand the crop to a listener in chunks as it is encoded
+     *
+     * @param listener  Listener to receive the chunks
+     * @param chunkSize Size of the chunks, except for the last one
+     */
+    public static OutputSink toListener(final ChunkListener listener, final int chunkSize) {
+        return new OutputSink() {
+            private ChunkOutputStream stream;
+
+            @Override
+            protected OutputStream open() {
+                stream = new ChunkOutputStream(listener, chunkSize);
+                return stream;
+            }
+
+            @Override
+            protected void onComplete() throws IOException {
+                listener.onComplete();
+            }
+
+            @Override
+            protected void onCancelled() {
+                listener.onCancelled();
+            }
+
+            @Override
+            protected void onError(Throwable error) {
+                listener.onError(error);
+            }
+
+            @Override
+            void abort() {
+                if (stream != null) {
+                    stream.aborted = true;
+                }
+            }
+        };
+    }
+
+    /**
+     * Sink that keeps the encoded image in memory
+     */
+    public static class BufferSink extends OutputSink {
+
+        private final ExposedByteArrayOutputStream stream;
+
+        BufferSink(int initialCapacity) {
+            stream = new ExposedByteArrayOutputStream(initialCapacity);
+        }
+
+        @Override
+        protected OutputStream open() {
+            stream.reset();
+            return stream;
+        }
+
+        /**
+         * @return Read-only view of the encoded image, without copying it
+         */
+        public ByteBuffer getBuffer() {
+            return stream.toByteBuffer();
+        }
+    }
+
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        synchronized ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+        }
+    }
+
+    private static class ChunkOutputStream extends FilterOutputStream {
+
+        private final ChunkListener listener;
+        private final byte[] chunk;
+        private int count;
+        // The last chunk isn't delivered, as the image won't be complete
+        boolean aborted;
+
+        ChunkOutputStream(ChunkListener listener, int chunkSize) {
+            super(null);
+            this.listener = listener;
+            this.chunk = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == chunk.length) {
+                flushChunk();
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chunk.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!aborted) {
+                flushChunk();
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                listener.onChunk(chunk, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+}
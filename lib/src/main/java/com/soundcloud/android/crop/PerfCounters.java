@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+/*
+ * Work done on the interactive path, counted so that replayed gestures can catch
+ * performance regressions. Plain field increments, so they stay in release builds.
+ */
+class PerfCounters {
+
+    // HighlightView mapping its crop rect to the screen
+    int layouts;
+    // Calls to invalidate the view, whole or in part
+    int invalidations;
+    // Recomputations of the base or a derived matrix
+    int matrixUpdates;
+
+    void reset() {
+        layouts = 0;
+        invalidations = 0;
+        matrixUpdates = 0;
+    }
+
+}
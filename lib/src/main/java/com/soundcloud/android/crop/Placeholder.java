@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+
+import com.soundcloud.android.crop.core.BlurHash;
+import com.soundcloud.android.crop.core.Pixels;
+
+/*
+ * Tiny thumbnail and BlurHash for showing while the full image loads.
+ */
+class Placeholder {
+
+    static final int MAX_SIZE = 32;
+
+    private static final int COMPONENTS_X = 4;
+    private static final int COMPONENTS_Y = 3;
+    // Each thumbnail pixel averages a grid of this many samples in each direction,
+    // so the cost doesn't grow with the size of the crop
+    private static final int SAMPLES = 8;
+
+    final Bitmap thumbnail;
+    final String blurHash;
+
+    private Placeholder(Bitmap thumbnail, String blurHash) {
+        this.thumbnail = thumbnail;
+        this.blurHash = blurHash;
+    }
+
+    /*
+     * Builds the placeholder for the image as displayed, i.e. after applying the rotation.
+     */
+    public static Placeholder create(Bitmap bitmap, int rotation) {
+        int sourceWidth = bitmap.getWidth();
+        int sourceHeight = bitmap.getHeight();
+        float scale = Math.min(1f, (float) MAX_SIZE / Math.max(sourceWidth, sourceHeight));
+        int width = Math.max(1, Math.round(sourceWidth * scale));
+        int height = Math.max(1, Math.round(sourceHeight * scale));
+
+        int[] pixels = boxDownsample(bitmap, width, height);
+
+        boolean rotated = (rotation / 90) % 2 != 0;
+        int uprightWidth = rotated ? height : width;
+        int uprightHeight = rotated ? width : height;
+        int[] upright = Pixels.rotate(pixels, width, height, rotation);
+
+        Bitmap thumbnail = Bitmap.createBitmap(upright, uprightWidth, uprightHeight, Bitmap.Config.ARGB_8888);
+        String blurHash = BlurHash.encode(upright, uprightWidth, uprightHeight, COMPONENTS_X, COMPONENTS_Y);
+        return new Placeholder(thumbnail, blurHash);
+    }
+
+    static int[] boxDownsample(Bitmap bitmap, int width, int height) {
+        return ImageHashes.boxDownsample(bitmap, width, height, SAMPLES);
+    }
+
+}
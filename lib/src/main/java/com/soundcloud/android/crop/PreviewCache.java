@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Decoded previews shared by all crop screens in the process, so cropping the same image
+ * again, or switching between a few candidates, doesn't decode it again.
+ * <p>
+ * Previews are keyed by a fingerprint of the source (Uri, file size, dimensions and format)
+ * and the sample size they were decoded at. The cache is bounded by bytes, and shrinks when
+ * the system asks for memory on API 14+.
+ */
+public final class PreviewCache {
+
+    private static final int DEFAULT_MAX_BYTES = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final LruCache<Key, Entry> cache = new LruCache<Key, Entry>(DEFAULT_MAX_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Entry entry) {
+            return (int) CropMetrics.sizeOf(entry.bitmap);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Key key, Entry oldValue, Entry newValue) {
+            recycle(oldValue.bitmap);
+        }
+    };
+
+    /*
+     * References to the bitmaps the cache has seen: one for the cache while it holds the
+     * preview, and one for each crop screen it was handed to. A bitmap is recycled when the
+     * last of them is released. Bitmaps that aren't in here have a single owner.
+     */
+    private static final Map<Bitmap, Integer> references = new WeakHashMap<Bitmap, Integer>();
+
+    private static boolean registered;
+
+    private PreviewCache() {
+    }
+
+    /**
+     * @return Number of previews found in the cache
+     */
+    public static int getHitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * @return Number of previews that had to be decoded
+     */
+    public static int getMissCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * @return Fraction of lookups found in the cache, between 0 and 1
+     */
+    public static float getHitRate() {
+        int hits = cache.hitCount();
+        int lookups = hits + cache.missCount();
+        return lookups == 0 ? 0f : hits / (float) lookups;
+    }
+
+    /**
+     * @return Number of previews dropped to stay within the size limit or release memory
+     */
+    public static int getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * @return Bytes of the previews currently cached
+     */
+    public static int getSizeBytes() {
+        return cache.size();
+    }
+
+    /**
+     * @return Most bytes the cache will hold, by default 1/8 of the heap
+     */
+    public static int getMaxSizeBytes() {
+        return cache.maxSize();
+    }
+
+    /**
+     * Change the size limit, dropping the least recently used previews if it's exceeded.
+     * Use 0 to turn the cache off.
+     *
+     * @param maxBytes Most bytes the cache will hold
+     */
+    public static void setMaxSizeBytes(int maxBytes) {
+        // LruCache needs a positive size, and nothing can be smaller than 1 byte
+        cache.resize(Math.max(1, maxBytes));
+    }
+
+    /**
+     * Drop all cached previews
+     */
+    public static void clear() {
+        cache.evictAll();
+    }
+
+    static Key key(Uri sourceUri, long sourceBytes, int sourceWidth, int sourceHeight,
+                   String sourceMimeType, int sampleSize) {
+        return new Key(sourceUri, sourceBytes, sourceWidth, sourceHeight, sourceMimeType, sampleSize);
+    }
+
+    // Returns null on a miss. The bitmap of a hit must be passed to recycle() when done with.
+    static Entry get(Key key) {
+        synchronized (references) {
+            // Evicting takes the same lock to release the bitmap, so it can't be recycled in between
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                acquire(entry.bitmap);
+            }
+            return entry;
+        }
+    }
+
+    // The caller keeps its reference to the bitmap, and still passes it to recycle() when done
+    static void put(Context context, Key key, Bitmap bitmap, int sampleSize) {
+        if (bitmap == null) {
+            return;
+        }
+        registerTrimCallbacks(context);
+        acquire(bitmap);
+        cache.put(key, new Entry(bitmap, sampleSize));
+    }
+
+    // Drops the cache's reference to the bitmap, for a preview nobody is expected to ask for again
+    static void evict(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        for (Map.Entry<Key, Entry> cached : cache.snapshot().entrySet()) {
+            if (cached.getValue().bitmap == bitmap) {
+                cache.remove(cached.getKey());
+            }
+        }
+    }
+
+    // Keeps the bitmap from being recycled until it's passed to recycle() once more
+    static void acquire(Bitmap bitmap) {
+        synchronized (references) {
+            Integer count = references.get(bitmap);
+            references.put(bitmap, count != null ? count + 1 : 2);
+        }
+    }
+
+    // Releases a reference to the bitmap, and recycles it if it was the last one
+    static void recycle(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (references) {
+            Integer count = references.get(bitmap);
+            if (count != null && count > 1) {
+                references.put(bitmap, count - 1);
+                return;
+            }
+            references.remove(bitmap);
+        }
+        bitmap.recycle();
+    }
+
+    static void recycle(RotateBitmap preview) {
+        recycle(preview.getBitmap());
+        preview.setBitmap(null);
+    }
+
+    private static synchronized void registerTrimCallbacks(Context context) {
+        if (registered || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        registered = true;
+        context.getApplicationContext().registerComponentCallbacks(newTrimCallbacks());
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static ComponentCallbacks2 newTrimCallbacks() {
+        return new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_MODERATE) {
+                    // We're in the middle of the list of processes to kill, so give back everything
+                    cache.evictAll();
+                } else if (level != TRIM_MEMORY_UI_HIDDEN && level >= TRIM_MEMORY_RUNNING_LOW) {
+                    // Hiding the UI alone doesn't mean memory is short
+                    cache.trimToSize(cache.size() / 2);
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                cache.evictAll();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        };
+    }
+
+    static final class Entry {
+
+        final Bitmap bitmap;
+        // May be larger than the one in the key, if the decode ran out of memory
+        final int sampleSize;
+
+        Entry(Bitmap bitmap, int sampleSize) {
+            this.bitmap = bitmap;
+            this.sampleSize = sampleSize;
+        }
+    }
+
+    static final class Key {
+
+        private final Uri sourceUri;
+        private final long sourceBytes;
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final String sourceMimeType;
+        private final int sampleSize;
+
+        private Key(Uri sourceUri, long sourceBytes, int sourceWidth, int sourceHeight,
+                    String sourceMimeType, int sampleSize) {
+            this.sourceUri = sourceUri;
+            this.sourceBytes = sourceBytes;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.sourceMimeType = sourceMimeType;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sourceUri.equals(other.sourceUri)
+                    && sourceBytes == other.sourceBytes
+                    && sourceWidth == other.sourceWidth
+                    && sourceHeight == other.sourceHeight
+                    && (sourceMimeType == null ? other.sourceMimeType == null : sourceMimeType.equals(other.sourceMimeType))
+                    && sampleSize == other.sampleSize;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = sourceUri.hashCode();
+            result = 31 * result + (int) (sourceBytes ^ (sourceBytes >>> 32));
+            result = 31 * result + sourceWidth;
+            result = 31 * result + sourceHeight;
+            result = 31 * result + (sourceMimeType != null ? sourceMimeType.hashCode() : 0);
+            result = 31 * result + sampleSize;
+            return result;
+        }
+    }
+
+}
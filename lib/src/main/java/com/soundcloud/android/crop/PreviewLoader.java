@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.opengl.GLES10;
+
+import com.soundcloud.android.crop.core.CropPlanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Reads what the crop screen needs from the source: its size, format, Exif rotation
+ * and a preview small enough to draw. Blocking, so it can run on the main thread when
+ * the crop screen starts, or ahead of time on a background thread for Crop.prefetch().
+ */
+class PreviewLoader {
+
+    private static final int SIZE_DEFAULT = 2048;
+    private static final int SIZE_LIMIT = 4096;
+
+    // Number of times we retry with less memory after an OutOfMemoryError
+    private static final int MAX_DEGRADATION = 3;
+
+    private PreviewLoader() {
+    }
+
+    static CropSession load(Context context, Uri sourceUri) throws IOException {
+        return load(context, sourceUri, null);
+    }
+
+    /*
+     * The progress is only used to stop before the decode, by throwing a CancellationException
+     * if it was cancelled while the source was being probed.
+     */
+    static CropSession load(Context context, Uri sourceUri, CropProgress progress) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        CropMetrics metrics = new CropMetrics();
+        metrics.setSourceBytes(getSourceBytes(resolver, sourceUri));
+
+        long start = System.nanoTime();
+        int exifRotation = CropUtil.getExifRotation(CropUtil.getFromMediaUri(context, resolver, sourceUri));
+        metrics.endStage(CropMetrics.Stage.EXIF_READ, start, 0);
+
+        start = System.nanoTime();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream is = null;
+        try {
+            is = resolver.openInputStream(sourceUri);
+            BitmapFactory.decodeStream(is, null, bounds); // Just get image size
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+        int sampleSize = CropPlanner.sampleSize(bounds.outWidth, bounds.outHeight, getMaxImageSize());
+        metrics.endStage(CropMetrics.Stage.BOUNDS_PROBE, start, 0);
+        if (progress != null) {
+            progress.checkpoint();
+        }
+
+        PreviewCache.Key key = PreviewCache.key(sourceUri, metrics.getSourceFileBytes(),
+                bounds.outWidth, bounds.outHeight, bounds.outMimeType, sampleSize);
+        start = System.nanoTime();
+        Bitmap preview;
+        PreviewCache.Entry cached = PreviewCache.get(key);
+        if (cached != null) {
+            preview = cached.bitmap;
+            sampleSize = cached.sampleSize;
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            preview = decodePreview(resolver, sourceUri, options);
+            sampleSize = options.inSampleSize;
+            if (preview != null) {
+                PreviewCache.put(context, key, preview, sampleSize);
+            }
+        }
+        metrics.endStage(CropMetrics.Stage.PREVIEW_DECODE, start, preview != null ? CropMetrics.sizeOf(preview) : 0);
+        metrics.allocated(preview);
+        metrics.setSampleSize(sampleSize);
+
+        return new CropSession(sourceUri, new RotateBitmap(preview, exifRotation), sampleSize,
+                bounds.outWidth, bounds.outHeight, bounds.outMimeType, metrics);
+    }
+
+    // Decodes the preview, doubling the sample size in the options each time we run out of memory
+    private static Bitmap decodePreview(ContentResolver resolver, Uri sourceUri, BitmapFactory.Options options)
+            throws IOException {
+        for (int level = 0; ; level++) {
+            InputStream is = null;
+            try {
+                is = resolver.openInputStream(sourceUri);
+                return BitmapFactory.decodeStream(is, null, options);
+            } catch (OutOfMemoryError e) {
+                if (level == MAX_DEGRADATION) {
+                    throw e;
+                }
+                Log.e("OOM reading image at sample size " + options.inSampleSize + ", retrying", e);
+                PreviewCache.clear();
+                System.gc();
+                options.inSampleSize = options.inSampleSize << 1;
+            } finally {
+                CropUtil.closeSilently(is);
+            }
+        }
+    }
+
+    static long getSourceBytes(ContentResolver resolver, Uri sourceUri) {
+        AssetFileDescriptor fd = null;
+        try {
+            fd = resolver.openAssetFileDescriptor(sourceUri, "r");
+            return fd != null ? fd.getLength() : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (SecurityException e) {
+            return -1;
+        } finally {
+            if (fd != null) {
+                try {
+                    // AssetFileDescriptor is only Closeable from API 19
+                    fd.close();
+                } catch (IOException ignored) {
+                    // Nothing we can do
+                }
+            }
+        }
+    }
+
+    private static int getMaxImageSize() {
+        int textureLimit = getMaxTextureSize();
+        if (textureLimit == 0) {
+            return SIZE_DEFAULT;
+        } else {
+            return Math.min(textureLimit, SIZE_LIMIT);
+        }
+    }
+
+    private static int getMaxTextureSize() {
+        // The OpenGL texture size is the maximum size that can be drawn in an ImageView
+        int[] maxSize = new int[1];
+        GLES10.glGetIntegerv(GLES10.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        return maxSize[0];
+    }
+
+}
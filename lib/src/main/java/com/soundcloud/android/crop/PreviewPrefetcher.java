@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/*
+ * Previews decoded ahead of the crop screen by Crop.prefetch(), at most one per source.
+ * The crop screen takes the preview over, waiting for the decode if it's still running.
+ * Previews that nobody takes within the timeout are dropped, from the PreviewCache too,
+ * so a prefetch the user didn't follow up on doesn't hold on to a large bitmap. A decode
+ * that hasn't started by then is skipped.
+ */
+final class PreviewPrefetcher {
+
+    static final long TIMEOUT_MS = 30000;
+
+    private static final Map<Uri, Prefetch> prefetches = new HashMap<Uri, Prefetch>();
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private PreviewPrefetcher() {
+    }
+
+    static void prefetch(Context context, Uri sourceUri) {
+        Prefetch prefetch;
+        synchronized (prefetches) {
+            if (prefetches.containsKey(sourceUri)) {
+                return;
+            }
+            prefetch = new Prefetch(context.getApplicationContext(), sourceUri);
+            prefetches.put(sourceUri, prefetch);
+        }
+        handler.postDelayed(prefetch.expiry, TIMEOUT_MS);
+        prefetch.thread.start();
+    }
+
+    /*
+     * Returns the prefetched preview, or null if there was no prefetch for the source or it
+     * failed. Blocks while the decode is still running, which is never longer than starting
+     * over would take.
+     */
+    static CropSession take(Uri sourceUri) {
+        Prefetch prefetch;
+        synchronized (prefetches) {
+            prefetch = prefetches.remove(sourceUri);
+        }
+        if (prefetch == null) {
+            return null;
+        }
+        handler.removeCallbacks(prefetch.expiry);
+        return prefetch.await();
+    }
+
+    private static class Prefetch implements Runnable {
+
+        private final Context context;
+        private final Uri sourceUri;
+        private final Thread thread = new Thread(this, "crop-prefetch");
+
+        private final CropProgress progress = new CropProgress(null);
+        private CropSession session;
+
+        private final Runnable expiry = new Runnable() {
+            public void run() {
+                synchronized (prefetches) {
+                    if (prefetches.get(sourceUri) == Prefetch.this) {
+                        prefetches.remove(sourceUri);
+                    }
+                }
+                cancel();
+            }
+        };
+
+        Prefetch(Context context, Uri sourceUri) {
+            this.context = context;
+            this.sourceUri = sourceUri;
+        }
+
+        public void run() {
+            CropSession loaded = null;
+            long trace = CropTrace.begin("PreviewPrefetcher.prefetch");
+            try {
+                loaded = PreviewLoader.load(context, sourceUri, progress);
+            } catch (CancellationException e) {
+                // Expired before the decode started, so it was skipped
+            } catch (IOException e) {
+                // The crop screen tries again and reports the error
+                Log.e("Prefetch failed: " + e.getMessage(), e);
+            } catch (SecurityException e) {
+                Log.e("Prefetch failed: " + e.getMessage(), e);
+            } catch (OutOfMemoryError e) {
+                Log.e("OOM in prefetch: " + e.getMessage(), e);
+            } finally {
+                CropTrace.end("PreviewPrefetcher.prefetch", trace);
+            }
+            synchronized (this) {
+                if (progress.isCancelled() && loaded != null) {
+                    discard(loaded);
+                } else {
+                    session = loaded;
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            progress.cancel();
+            if (session != null) {
+                discard(session);
+                session = null;
+            }
+        }
+
+        private void discard(CropSession unused) {
+            PreviewCache.evict(unused.preview.getBitmap());
+            PreviewCache.recycle(unused.preview);
+        }
+
+        CropSession await() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            synchronized (this) {
+                CropSession taken = session;
+                session = null;
+                return taken;
+            }
+        }
+    }
+
+}
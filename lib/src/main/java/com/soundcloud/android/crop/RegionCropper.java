@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import com.soundcloud.android.crop.core.CropPlanner;
+import com.soundcloud.android.crop.core.CropRect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Cuts the crop area out of the source at full resolution, falling back to less memory
+ * hungry decodes on low memory devices. Crop rects are on the displayed (rotated) image.
+ * Blocking, so run it off the main thread. Reports progress between strips and bands of
+ * scaled rows, and stops there with a CancellationException once cancelled.
+ */
+class RegionCropper {
+
+    // Number of times we retry with less memory after an OutOfMemoryError
+    private static final int MAX_DEGRADATION = 3;
+    // Pixel budget for each strip when decoding a region piece by piece
+    private static final int STRIP_PIXELS = 1 << 20;
+    // Pixel budget for each band of output rows when scaling
+    private static final int SCALE_BAND_PIXELS = 1 << 18;
+    // Share of the progress given to decoding when the region is scaled afterwards
+    private static final float DECODE_SHARE = 0.5F;
+
+    private final ContentResolver resolver;
+    private final Uri sourceUri;
+    private final int exifRotation;
+    private final CropMetrics metrics;
+    private final CropProgress progress;
+
+    // How far the last crop had to fall back, see decodeRegionWithFallback()
+    int degradation;
+
+    RegionCropper(ContentResolver resolver, Uri sourceUri, int exifRotation, CropMetrics metrics,
+                  CropProgress progress) {
+        this.resolver = resolver;
+        this.sourceUri = sourceUri;
+        this.exifRotation = exifRotation;
+        this.metrics = metrics;
+        this.progress = progress;
+    }
+
+    Bitmap decodeRegionCrop(Rect rect, int outWidth, int outHeight) throws IOException {
+        progress.checkpoint();
+        InputStream is = null;
+        try {
+            is = resolver.openInputStream(sourceUri);
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+
+            rect = getSourceRect(rect, width, height);
+
+            try {
+                return decodeRegionWithFallback(decoder, rect, outWidth, outHeight);
+            } catch (IllegalArgumentException e) {
+                // Rethrow with some extra information
+                throw new IllegalArgumentException("Rectangle " + rect + " is outside of the image ("
+                        + width + "," + height + "," + exifRotation + ")", e);
+            } finally {
+                decoder.recycle();
+            }
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+    }
+
+    /*
+     * When the preview was decoded at full resolution, crop straight from its pixels
+     * instead of reading and decoding the source again. Returns null if we're short of
+     * memory, so the caller can fall back to a region decode after releasing the preview.
+     */
+    Bitmap cropFromPreview(Bitmap preview, Rect rect, int outWidth, int outHeight) {
+        final int width = preview.getWidth();
+        final int height = preview.getHeight();
+        Rect sourceRect = getSourceRect(rect, width, height);
+        if (sourceRect.isEmpty() || sourceRect.left < 0 || sourceRect.top < 0
+                || sourceRect.right > width || sourceRect.bottom > height) {
+            throw new IllegalArgumentException("Rectangle " + sourceRect + " is outside of the image ("
+                    + width + "," + height + "," + exifRotation + ")");
+        }
+        progress.checkpoint();
+
+        boolean scale = sourceRect.width() > outWidth || sourceRect.height() > outHeight;
+        try {
+            long start = System.nanoTime();
+            Bitmap croppedImage;
+            if (scale) {
+                croppedImage = scale(preview, sourceRect, outWidth, outHeight, 0F);
+            } else {
+                croppedImage = Bitmap.createBitmap(preview, sourceRect.left, sourceRect.top,
+                        sourceRect.width(), sourceRect.height());
+                if (croppedImage == preview) {
+                    // Whole image with no scaling: the preview gets recycled, so we need our own copy
+                    croppedImage = preview.copy(preview.getConfig(), false);
+                }
+                metrics.allocated(croppedImage);
+                progress.update(1F);
+            }
+            // Cutting and scaling are a single pass here, so count it where the work would normally be
+            metrics.endStage(scale ? CropMetrics.Stage.SCALE : CropMetrics.Stage.REGION_DECODE, start,
+                    croppedImage != null ? CropMetrics.sizeOf(croppedImage) : 0);
+            return croppedImage;
+        } catch (OutOfMemoryError e) {
+            Log.e("OOM cropping from preview, falling back to region decode", e);
+            return null;
+        }
+    }
+
+    // Maps a crop rect on the displayed (rotated) image onto the unrotated source
+    Rect getSourceRect(Rect rect, int width, int height) {
+        if (exifRotation == 0) {
+            return rect;
+        }
+        CropRect adjusted = new CropRect(rect.left, rect.top, rect.right, rect.bottom);
+        CropPlanner.sourceRect(adjusted, width, height, exifRotation, adjusted);
+        return new Rect((int) adjusted.left, (int) adjusted.top, (int) adjusted.right, (int) adjusted.bottom);
+    }
+
+    /*
+     * Degradation ladder for low memory devices:
+     * 0 - decode the whole region, then scale it down
+     * 1 - decode in strips straight into an output bitmap of the requested size
+     * 2+ - as 1, but halve the output size for each further level
+     */
+    private Bitmap decodeRegionWithFallback(BitmapRegionDecoder decoder, Rect rect, int outWidth, int outHeight) {
+        for (degradation = 0; ; degradation++) {
+            try {
+                if (degradation == 0) {
+                    return decodeRegion(decoder, rect, outWidth, outHeight);
+                }
+                int shift = degradation - 1;
+                return decodeRegionInStrips(decoder, rect,
+                        Math.max(1, outWidth >> shift), Math.max(1, outHeight >> shift));
+            } catch (OutOfMemoryError e) {
+                if (degradation == MAX_DEGRADATION) {
+                    throw e;
+                }
+                Log.e("OOM cropping image at degradation level " + degradation + ", retrying", e);
+                // Cached previews of other images are the first thing we can do without
+                PreviewCache.clear();
+                System.gc();
+            }
+        }
+    }
+
+    Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect, int outWidth, int outHeight) {
+        progress.checkpoint();
+        long start = System.nanoTime();
+        Bitmap croppedImage = decoder.decodeRegion(rect, new BitmapFactory.Options());
+        if (croppedImage == null) {
+            return null;
+        }
+        metrics.endStage(CropMetrics.Stage.REGION_DECODE, start, CropMetrics.sizeOf(croppedImage));
+        metrics.allocated(croppedImage);
+        boolean scale = rect.width() > outWidth || rect.height() > outHeight;
+        // Also released when scaling runs out of memory, so the next level of the ladder has it
+        boolean done = false;
+        try {
+            progress.update(scale ? DECODE_SHARE : 1F);
+            if (scale) {
+                start = System.nanoTime();
+                Bitmap scaled = scale(croppedImage, new Rect(0, 0, croppedImage.getWidth(), croppedImage.getHeight()),
+                        outWidth, outHeight, DECODE_SHARE);
+                metrics.endStage(CropMetrics.Stage.SCALE, start, CropMetrics.sizeOf(scaled));
+                release(croppedImage);
+                croppedImage = scaled;
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                release(croppedImage);
+            }
+        }
+        return croppedImage;
+    }
+
+    private Bitmap decodeRegionInStrips(BitmapRegionDecoder decoder, Rect rect, int outWidth, int outHeight) {
+        // Subsample while decoding as long as we don't go below the output size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (rect.width() / (options.inSampleSize << 1) >= outWidth
+                && rect.height() / (options.inSampleSize << 1) >= outHeight) {
+            options.inSampleSize = options.inSampleSize << 1;
+        }
+
+        // Decoding and scaling are interleaved strip by strip, so they're timed together
+        progress.checkpoint();
+        long start = System.nanoTime();
+        Bitmap croppedImage = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        metrics.allocated(croppedImage);
+        Canvas canvas = new Canvas(croppedImage);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        float scaleY = (float) outHeight / rect.height();
+
+        int stripHeight = Math.max(options.inSampleSize,
+                STRIP_PIXELS / rect.width() * options.inSampleSize * options.inSampleSize);
+        Rect strip = new Rect();
+        RectF dst = new RectF();
+        boolean done = false;
+        try {
+            for (int top = rect.top; top < rect.bottom; top += stripHeight) {
+                progress.update((float) (top - rect.top) / rect.height());
+                strip.set(rect.left, top, rect.right, Math.min(rect.bottom, top + stripHeight));
+                Bitmap piece = decoder.decodeRegion(strip, options);
+                if (piece == null) {
+                    return null;
+                }
+                metrics.allocated(piece);
+                dst.set(0, (strip.top - rect.top) * scaleY, outWidth, (strip.bottom - rect.top) * scaleY);
+                canvas.drawBitmap(piece, null, dst, paint);
+                release(piece);
+            }
+            progress.update(1F);
+            done = true;
+        } finally {
+            if (!done) {
+                release(croppedImage);
+            }
+        }
+        metrics.endStage(CropMetrics.Stage.REGION_DECODE, start, CropMetrics.sizeOf(croppedImage));
+        return croppedImage;
+    }
+
+    /*
+     * Scales part of a bitmap to the output size a band of rows at a time, so a cancelled
+     * crop stops between bands. Every band is drawn through the same filtered matrix and
+     * clipped, so there are no seams between them.
+     */
+    private Bitmap scale(Bitmap source, Rect sourceRect, int outWidth, int outHeight, float progressStart) {
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap scaled = Bitmap.createBitmap(outWidth, outHeight, config);
+        metrics.allocated(scaled);
+        Canvas canvas = new Canvas(scaled);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-sourceRect.left, -sourceRect.top);
+        matrix.postScale((float) outWidth / sourceRect.width(), (float) outHeight / sourceRect.height());
+
+        int bandHeight = Math.max(1, SCALE_BAND_PIXELS / outWidth);
+        boolean done = false;
+        try {
+            for (int top = 0; top < outHeight; top += bandHeight) {
+                progress.update(progressStart + (1F - progressStart) * top / outHeight);
+                canvas.save();
+                canvas.clipRect(0, top, outWidth, Math.min(outHeight, top + bandHeight));
+                canvas.drawBitmap(source, matrix, paint);
+                canvas.restore();
+            }
+            progress.update(1F);
+            done = true;
+        } finally {
+            if (!done) {
+                release(scaled);
+            }
+        }
+        return scaled;
+    }
+
+    private void release(Bitmap bitmap) {
+        metrics.released(bitmap);
+        bitmap.recycle();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import android.view.MotionEvent;
+
+import org.robolectric.Robolectric;
+import org.robolectric.util.Scheduler;
+
+import java.lang.management.ManagementFactory;
+
+/*
+ * Replays a gesture trace against a view on the paused Robolectric main looper, so that
+ * frame callbacks run between events just as they would on a device, and counts the work
+ * done for each MotionEvent.
+ *
+ * Allocated bytes come from the JVM and include allocations by Robolectric's shadows,
+ * so they are only comparable between runs of the same trace, not with a device.
+ */
+class GestureReplay {
+
+    // Long enough for the frame callback posted by the last event to run
+    private static final long SETTLE_MS = 100;
+
+    final int[] actions;
+    final int[] layouts;
+    final int[] invalidations;
+    final int[] matrixUpdates;
+    final long[] allocatedBytes;
+
+    private GestureReplay(int events) {
+        actions = new int[events];
+        layouts = new int[events];
+        invalidations = new int[events];
+        matrixUpdates = new int[events];
+        allocatedBytes = new long[events];
+    }
+
+    static GestureReplay replay(GestureTrace trace, CropImageView view) {
+        Scheduler scheduler = Robolectric.getForegroundThreadScheduler();
+        scheduler.pause();
+        long startTime = scheduler.getCurrentTime();
+
+        int events = trace.getMotionEventCount();
+        GestureReplay result = new GestureReplay(events);
+        PerfCounters counters = view.perfCounters;
+        long allocationStart = 0;
+        for (int i = 0; i < events; i++) {
+            MotionEvent event = trace.obtainMotionEvent(i, startTime);
+            // Frames due before this event run first, and count towards the previous one
+            scheduler.advanceTo(startTime + trace.getEventTime(i));
+            if (i > 0) {
+                result.record(i - 1, counters, allocatedBytes() - allocationStart);
+            }
+            counters.reset();
+            allocationStart = allocatedBytes();
+            result.actions[i] = event.getActionMasked();
+            view.dispatchTouchEvent(event);
+            event.recycle();
+        }
+        scheduler.advanceBy(SETTLE_MS);
+        if (events > 0) {
+            result.record(events - 1, counters, allocatedBytes() - allocationStart);
+        }
+        return result;
+    }
+
+    private void record(int event, PerfCounters counters, long allocated) {
+        layouts[event] = counters.layouts;
+        invalidations[event] = counters.invalidations;
+        matrixUpdates[event] = counters.matrixUpdates;
+        allocatedBytes[event] = allocated;
+    }
+
+    // Bytes allocated by this thread so far, or 0 if the JVM doesn't track them
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // Largest value of a counter for events with the given action
+    int max(int[] counter, int action) {
+        int max = 0;
+        for (int i = 0; i < actions.length; i++) {
+            if (actions[i] == action) {
+                max = Math.max(max, counter[i]);
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 SoundCloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soundcloud.android.crop;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.soundcloud.android.crop.core.CropRect;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class GestureReplayTest {
+
+    private static final int FRAME_MS = 16;
+
+    private CropImageView view;
+
+    @Before
+    public void setUp() {
+        view = new CropImageView(RuntimeEnvironment.application);
+        view.measure(View.MeasureSpec.makeMeasureSpec(500, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(500, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, 500, 500);
+        view.setImageRotateBitmapResetBase(
+                new RotateBitmap(Bitmap.createBitmap(1000, 1000, Bitmap.Config.ARGB_8888), 0), true);
+
+        HighlightView highlightView = new HighlightView(view);
+        highlightView.setup(view.getUnrotatedMatrix(), new Rect(0, 0, 1000, 1000),
+                new CropRect(200, 200, 800, 800), false);
+        highlightView.setFocus(true);
+        view.add(highlightView);
+    }
+
+    @Test
+    public void traceSurvivesBinaryRoundTrip() throws Exception {
+        GestureTrace trace = dragEdgesAndMove();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        trace.writeTo(out);
+        GestureTrace read = GestureTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(read.getMotionEventCount()).isEqualTo(trace.getMotionEventCount());
+        assertThat(read.getViewWidth()).isEqualTo(500);
+        MotionEvent last = read.obtainMotionEvent(read.getMotionEventCount() - 1, 0);
+        assertThat(last.getActionMasked()).isEqualTo(MotionEvent.ACTION_UP);
+        assertThat(last.getX()).isEqualTo(250F);
+    }
+
+    @Test
+    public void dragFramesLayOutAndInvalidateOnce() {
+        GestureReplay replay = GestureReplay.replay(dragEdgesAndMove(), view);
+
+        // One layout to convert the delta to image space, one after applying it
+        assertThat(replay.max(replay.layouts, MotionEvent.ACTION_MOVE)).isLessThanOrEqualTo(2);
+        assertThat(replay.max(replay.invalidations, MotionEvent.ACTION_MOVE)).isLessThanOrEqualTo(1);
+        // Dragging the crop rect doesn't touch the image matrix
+        assertThat(replay.max(replay.matrixUpdates, MotionEvent.ACTION_MOVE)).isEqualTo(0);
+    }
+
+    @Test
+    public void secondFingerEndsCropRectDrag() {
+        long time = SystemClock.uptimeMillis();
+        view.onTouchEvent(event(time, time, MotionEvent.ACTION_DOWN, 250, 250));
+        assertThat(view.motionHighlightView).isNotNull();
+
+        view.onTouchEvent(twoFingerEvent(time, time + FRAME_MS,
+                MotionEvent.ACTION_POINTER_DOWN | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT)));
+
+        // Free for the pinch to take over
+        assertThat(view.motionHighlightView).isNull();
+    }
+
+    @Test
+    public void doubleTapZoomsIn() {
+        GestureTrace.Recorder recorder = new GestureTrace.Recorder();
+        long time = SystemClock.uptimeMillis();
+        // Outside the crop rect, so it isn't dragged
+        for (int tap = 0; tap < 2; tap++) {
+            long downTime = time;
+            recorder.record(event(downTime, time, MotionEvent.ACTION_DOWN, 20, 20));
+            time += 3 * FRAME_MS;
+            recorder.record(event(downTime, time, MotionEvent.ACTION_UP, 20, 20));
+            time += 5 * FRAME_MS;
+        }
+        float scale = view.getScale();
+
+        GestureReplay.replay(recorder.toTrace(), view);
+        Robolectric.getForegroundThreadScheduler().advanceBy(1000);
+
+        assertThat(view.getScale()).isGreaterThan(scale);
+    }
+
+    @Test
+    public void cancelEndsCropRectDrag() {
+        long time = SystemClock.uptimeMillis();
+        view.onTouchEvent(event(time, time, MotionEvent.ACTION_DOWN, 250, 250));
+        view.onTouchEvent(event(time, time + FRAME_MS, MotionEvent.ACTION_MOVE, 260, 260));
+        assertThat(view.motionHighlightView).isNotNull();
+
+        view.onTouchEvent(event(time, time + 2 * FRAME_MS, MotionEvent.ACTION_CANCEL, 260, 260));
+
+        // Settled, so a pinch can start
+        assertThat(view.motionHighlightView).isNull();
+    }
+
+    // Drags each edge of the crop rect in and out, then moves it around, one sample per frame
+    private GestureTrace dragEdgesAndMove() {
+        GestureTrace.Recorder recorder = new GestureTrace.Recorder();
+        view.setGestureRecorder(recorder);
+        long time = SystemClock.uptimeMillis();
+        float[][] edges = { { 100, 250 }, { 400, 250 }, { 250, 100 }, { 250, 400 }, { 250, 250 } };
+        for (float[] edge : edges) {
+            long downTime = time;
+            recorder.record(event(downTime, time, MotionEvent.ACTION_DOWN, edge[0], edge[1]));
+            for (int i = 1; i <= 20; i++) {
+                time += FRAME_MS;
+                float d = (i <= 10 ? i : 20 - i) * 3F;
+                recorder.record(event(downTime, time, MotionEvent.ACTION_MOVE, edge[0] + d, edge[1] + d));
+            }
+            time += FRAME_MS;
+            recorder.record(event(downTime, time, MotionEvent.ACTION_UP, edge[0], edge[1]));
+            time += 10 * FRAME_MS;
+        }
+        view.setGestureRecorder(null);
+        return recorder.toTrace();
+    }
+
+    private static MotionEvent event(long downTime, long time, int action, float x, float y) {
+        return MotionEvent.obtain(downTime, time, action, x, y, 0);
+    }
+
+    private static MotionEvent twoFingerEvent(long downTime, long time, int action) {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[2];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[2];
+        for (int i = 0; i < 2; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = 250 + i * 100;
+            coords[i].y = 250 + i * 100;
+        }
+        return MotionEvent.obtain(downTime, time, action, 2, properties, coords, 0, 0, 1F, 1F, 0, 0, 0, 0);
+    }
+
+}